@@ -0,0 +1,102 @@
+package edu.upenn.ds.team.mp2;
+
+import edu.upenn.ds.team.service.AvroMessageDecoder;
+import edu.upenn.ds.team.service.AvroMessageEncoder;
+import edu.upenn.ds.team.service.Compression;
+import edu.upenn.ds.team.utils.AvroUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Avro encoding and decoding of ACK messages, alone and through the Netty codec handlers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+  @Param({"10", "100", "1000", "10000"})
+  private int entryNum;
+
+  // applies to the pipeline benchmark only
+  @Param({"NONE", "SNAPPY", "DEFLATE"})
+  private Compression compression;
+
+  private Message message;
+  private byte[] bytes;
+  private ByteBuf buffer;
+  private EmbeddedChannel encoderChannel;
+  private EmbeddedChannel decoderChannel;
+
+  @Setup
+  public void setUp() throws Exception {
+    message = newAck(entryNum);
+    bytes = AvroUtils.serialize(message, Message.class);
+    buffer = PooledByteBufAllocator.DEFAULT.heapBuffer(bytes.length * 2);
+    encoderChannel = new EmbeddedChannel(new AvroMessageEncoder<>(Message.class, null, compression, 512));
+    decoderChannel = new EmbeddedChannel(new AvroMessageDecoder<>(Message.class, true));
+  }
+
+  @TearDown
+  public void tearDown() {
+    buffer.release();
+    encoderChannel.finishAndReleaseAll();
+    decoderChannel.finishAndReleaseAll();
+  }
+
+  @Benchmark
+  public byte[] serialize() throws Exception {
+    return AvroUtils.serialize(message, Message.class);
+  }
+
+  @Benchmark
+  public int serializeToBuffer() throws Exception {
+    buffer.clear();
+    AvroUtils.serialize(message, Message.class, buffer);
+    return buffer.readableBytes();
+  }
+
+  @Benchmark
+  public Message deserialize() throws Exception {
+    return AvroUtils.deserialize(bytes, Message.class);
+  }
+
+  // length-prefixed frame through AvroMessageEncoder and back through AvroMessageDecoder
+  @Benchmark
+  public void pipeline(final Blackhole blackhole) {
+    encoderChannel.writeOutbound(message);
+    final ByteBuf frame = encoderChannel.readOutbound();
+    decoderChannel.writeInbound(frame);
+    blackhole.consume(decoderChannel.readInbound());
+  }
+
+  static Message newAck(final int entryNum) {
+    final List<Entry> table = new ArrayList<>(entryNum);
+    for (int i = 0; i < entryNum; ++i) {
+      table.add(new Entry(memberIdAt(i), i % 10 == 0 ? Status.SUSPECTED : Status.ACTIVE, (long) (i % 3),
+          i % 10 == 0 ? memberIdAt(i + 1) : 0L));
+    }
+    return Message.newBuilder()
+        .setType(Type.ACK)
+        .setSender(memberIdAt(entryNum))
+        .setTable(table)
+        .setSeq(entryNum)
+        .build();
+  }
+
+  // a member of 10.0.0.0/16 with a port and a generation, as packed by Utils.toMemberId
+  static long memberIdAt(final int i) {
+    final long ip = (10L << 24) | (i >>> 8 & 0xFF) << 8 | (i & 0xFF);
+    return ip << 32 | (long) (7000 + i % 100) << 16 | (i * 31 & 0xFFFF);
+  }
+}
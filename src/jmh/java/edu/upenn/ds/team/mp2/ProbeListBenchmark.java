@@ -0,0 +1,52 @@
+package edu.upenn.ds.team.mp2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Target selection of a round and of indirect probes at large membership sizes.
+ * ProbeList replaced Server.getActiveIds/getTargets, which rebuilt and shuffled the list every pass.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeListBenchmark {
+
+  @Param({"100", "1000", "10000", "100000"})
+  private int memberNum;
+
+  private ProbeList probeList;
+  private final long[] targets = new long[3];
+  private long churnId;
+
+  @Setup
+  public void setUp() {
+    probeList = new ProbeList();
+    for (int i = 0; i < memberNum; ++i) {
+      probeList.add(CodecBenchmark.memberIdAt(i));
+    }
+    churnId = CodecBenchmark.memberIdAt(memberNum);
+  }
+
+  // includes the reshuffle at the end of every pass, amortized over the pass
+  @Benchmark
+  public int next() {
+    return probeList.next(targets);
+  }
+
+  @Benchmark
+  public int sample() {
+    return probeList.sample(targets, churnId);
+  }
+
+  // one member joins and fails again
+  @Benchmark
+  public boolean churn() {
+    probeList.add(churnId);
+    return probeList.remove(churnId);
+  }
+}
@@ -0,0 +1,169 @@
+package edu.upenn.ds.team.mp2;
+
+import edu.upenn.ds.team.metrics.MetricsRegistry;
+import edu.upenn.ds.team.service.Transport;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message handling of {@link MembershipProtocol} with large tables, and the JOIN_ACK construction.
+ * Replies go to a transport that discards them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+  private static final long SELF_ID = CodecBenchmark.memberIdAt(65535);
+
+  @Param({"100", "1000", "10000"})
+  private int memberNum;
+
+  private HashedWheelTimer timer;
+  private MembershipTable membershipTable;
+  private ChangeTable changeTable;
+  private JoinAckSender joinAckSender;
+  private MembershipProtocol protocol;
+  private DiscardTransport transport;
+  // every entry is already known, as in a stable group
+  private Message ack;
+  private Message ping;
+
+  @Setup
+  public void setUp() {
+    timer = SuspicionTimer.newTimer();
+    membershipTable = new MembershipTable(60000);
+    changeTable = new ChangeTable(memberNum, 4, 1024, membershipTable);
+    final ProbeList probeList = new ProbeList();
+    joinAckSender = new JoinAckSender(SELF_ID, 40, 10000);
+    ack = CodecBenchmark.newAck(memberNum);
+    for (final Entry entry : ack.getTable()) {
+      membershipTable.put(entry.getMember(), entry.getStatus(), entry.getIncarnation());
+      probeList.add(entry.getMember());
+    }
+    membershipTable.put(SELF_ID, Status.ACTIVE, 0L);
+    ping = Message.newBuilder()
+        .setType(Type.PING)
+        .setSender(ack.getSender())
+        .setSeq(0L)
+        .build();
+
+    final ProtocolMetrics metrics = new ProtocolMetrics(new MetricsRegistry());
+    final SuspicionTimer suspectTable = new SuspicionTimer(timer, 300, 4, 3, 4000, 3, membershipTable,
+        new SuspicionTimer.Listener() {
+          @Override
+          public void onSuspicionTimeout(final long memberId) {
+          }
+        }, ImmediateEventExecutor.INSTANCE);
+    protocol = new MembershipProtocol(SELF_ID, membershipTable, changeTable, suspectTable,
+        new ConcurrentHashMap<Long, Long>(), new ArrayBlockingQueue<Long>(6), new ConcurrentHashMap<Long, Long>(),
+        probeList, joinAckSender, new JoinAckAssembler(), new IndirectProbeTable(300),
+        new RttEstimator(300, 100, 300), new LocalHealth(8), metrics, new MembershipEvents(4096),
+        new AntiEntropy(SELF_ID, membershipTable, 20, metrics));
+    transport = new DiscardTransport();
+    protocol.setTransport(transport);
+  }
+
+  @TearDown
+  public void tearDown() {
+    transport.stop();
+    timer.stop();
+  }
+
+  @Benchmark
+  public void handleAck() {
+    protocol.handle(ack);
+  }
+
+  // the change table is refilled first, so every PING selects from memberNum changes
+  @Benchmark
+  public void handlePing() {
+    for (final Entry entry : ack.getTable()) {
+      changeTable.put(membershipTable.get(entry.getMember()), entry.getStatus(), entry.getIncarnation());
+    }
+    protocol.handle(ping);
+  }
+
+  @Benchmark
+  public List<Entry> toEntries() {
+    return membershipTable.toEntries();
+  }
+
+  @Benchmark
+  public List<Message> joinAck() {
+    return joinAckSender.split(ack.getSender(), membershipTable.toEntries());
+  }
+
+  /**
+   * Counts and drops every message.
+   */
+  private static final class DiscardTransport implements Transport {
+    private final EventLoop eventLoop = new DefaultEventLoop();
+    private long sent = 0;
+
+    @Override
+    public boolean start(final int port) {
+      return true;
+    }
+
+    @Override
+    public Future<Void> sendAsync(final InetSocketAddress address, final Object obj) {
+      return sendAsync(address, obj, null);
+    }
+
+    @Override
+    public Future<Void> sendAsync(final InetSocketAddress address, final Object obj,
+                                  final GenericFutureListener<? extends Future<? super Void>> listener) {
+      ++sent;
+      return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public EventLoop getEventLoop() {
+      return eventLoop;
+    }
+
+    @Override
+    public boolean stop() {
+      eventLoop.shutdownGracefully();
+      return true;
+    }
+
+    @Override
+    public boolean waitForClose() {
+      return true;
+    }
+
+    @Override
+    public void setDropRate(final double dropRate) {
+    }
+
+    @Override
+    public long getSendFailureCount() {
+      return 0;
+    }
+
+    @Override
+    public long getDroppedMessageCount() {
+      return 0;
+    }
+  }
+}
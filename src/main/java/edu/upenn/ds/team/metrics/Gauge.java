@@ -0,0 +1,8 @@
+package edu.upenn.ds.team.metrics;
+
+/**
+ * A value read when the metrics are exported.
+ */
+public interface Gauge {
+  long getValue();
+}
@@ -0,0 +1,88 @@
+package edu.upenn.ds.team.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets, in the style of HdrHistogram.
+ * Every power of two is split into {@link #HALF_BUCKETS} buckets, so a recorded value is reported
+ * with a relative error of about 3%. Recording allocates nothing.
+ */
+public final class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int HALF_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+  // values up to 2^MAX_BITS - 1. larger ones are clamped.
+  private static final int MAX_BITS = 40;
+  private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+  private static final int BUCKET_NUM = indexOf(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_NUM);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(final long value) {
+    final long v = Math.min(Math.max(value, 0L), MAX_VALUE);
+    counts.incrementAndGet(indexOf(v));
+    count.increment();
+    sum.add(v);
+    long prev = max.get();
+    while (v > prev && !max.compareAndSet(prev, v)) {
+      prev = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @return the upper bound of the bucket holding the given quantile, or 0 if nothing is recorded
+   */
+  public long getQuantile(final double quantile) {
+    long total = 0;
+    for (int i = 0; i < BUCKET_NUM; ++i) {
+      total += counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_NUM; ++i) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  // values below 2 * HALF_BUCKETS have a bucket each. above, the top SUB_BUCKET_BITS bits select the bucket.
+  private static int indexOf(final long value) {
+    if (value < 2 * HALF_BUCKETS) {
+      return (int) value;
+    }
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+    return shift * HALF_BUCKETS + (int) (value >>> shift);
+  }
+
+  private static long upperBoundOf(final int index) {
+    if (index < 2 * HALF_BUCKETS) {
+      return index;
+    }
+    final int shift = index / HALF_BUCKETS - 1;
+    final long lowerBound = (long) (index - shift * HALF_BUCKETS) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+}
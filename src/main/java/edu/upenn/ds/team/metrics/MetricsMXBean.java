@@ -0,0 +1,19 @@
+package edu.upenn.ds.team.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link MetricsRegistry}.
+ */
+public interface MetricsMXBean {
+
+  /**
+   * @return counters and gauges by name, and count, sum, p50, p99 and max of every histogram
+   */
+  Map<String, Long> getValues();
+
+  /**
+   * @return the same values in the plain-text format of the scrape endpoint
+   */
+  String getText();
+}
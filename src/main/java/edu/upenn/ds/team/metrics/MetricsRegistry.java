@@ -0,0 +1,113 @@
+package edu.upenn.ds.team.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Named counters, gauges and histograms of one server.
+ * Metrics are created once and kept by the recording code, so recording is a field access and an add.
+ * Names follow the Prometheus text format, e.g. {@code gossip_pings_sent_total} or
+ * {@code gossip_bytes_out_total{type="PING"}}.
+ */
+public final class MetricsRegistry implements MetricsMXBean {
+
+  private static final Logger LOG = Logger.getLogger(MetricsRegistry.class.getName());
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+  private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+  private ObjectName objectName;
+
+  public LongAdder counter(final String name) {
+    final LongAdder counter = new LongAdder();
+    final LongAdder prev = counters.putIfAbsent(name, counter);
+    return prev == null ? counter : prev;
+  }
+
+  public void gauge(final String name, final Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  public Histogram histogram(final String name) {
+    final Histogram histogram = new Histogram();
+    final Histogram prev = histograms.putIfAbsent(name, histogram);
+    return prev == null ? histogram : prev;
+  }
+
+  @Override
+  public Map<String, Long> getValues() {
+    final Map<String, Long> values = new TreeMap<>();
+    for (final Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+      values.put(counter.getKey(), counter.getValue().sum());
+    }
+    for (final Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+      values.put(gauge.getKey(), gauge.getValue().getValue());
+    }
+    for (final Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      final String name = entry.getKey();
+      final Histogram histogram = entry.getValue();
+      values.put(name + "_count", histogram.getCount());
+      values.put(name + "_sum", histogram.getSum());
+      values.put(name + "_max", histogram.getMax());
+      for (final double quantile : QUANTILES) {
+        values.put(withLabel(name, "quantile", String.valueOf(quantile)), histogram.getQuantile(quantile));
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public String getText() {
+    final StringBuilder sb = new StringBuilder();
+    for (final Map.Entry<String, Long> value : getValues().entrySet()) {
+      sb.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Registers this registry to the platform MBean server under the given object name.
+   */
+  public void registerMBean(final String name) {
+    try {
+      final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      objectName = new ObjectName(name);
+      mBeanServer.registerMBean(this, objectName);
+    } catch (final JMException e) {
+      LOG.log(Level.WARNING, "Failed to register metrics to JMX", e);
+      objectName = null;
+    }
+  }
+
+  public void unregisterMBean() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (final JMException e) {
+      LOG.log(Level.FINE, "Failed to unregister metrics from JMX", e);
+    }
+    objectName = null;
+  }
+
+  /**
+   * @return the name with one more label, e.g. {@code a{b="c"}}
+   */
+  public static String withLabel(final String name, final String label, final String value) {
+    final String pair = label + "=\"" + value + "\"";
+    if (name.endsWith("}")) {
+      return name.substring(0, name.length() - 1) + "," + pair + "}";
+    }
+    return name + "{" + pair + "}";
+  }
+}
@@ -0,0 +1,81 @@
+package edu.upenn.ds.team.mp2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Push-pull anti-entropy, to heal the divergence that piggybacked changes leave behind, e.g., changes evicted from
+ * the change table during a partition.
+ * Now and then a member sends a SYNC with the digest of its membership table to another one. The receiver answers
+ * with its entries in the buckets that differ and its own digest (pull), and the sender returns its entries in the
+ * buckets that still differ (push). Views in agreement cost one SYNC of DIGEST_BUCKETS hashes.
+ */
+final class AntiEntropy {
+
+  private final long memberId;
+  private final MembershipTable membershipTable;
+  private final int chunkSize;
+  private final ProtocolMetrics metrics;
+
+  AntiEntropy(final long memberId, final MembershipTable membershipTable, final int chunkSize,
+              final ProtocolMetrics metrics) {
+    this.memberId = memberId;
+    this.membershipTable = membershipTable;
+    this.chunkSize = chunkSize;
+    this.metrics = metrics;
+  }
+
+  Message newSync() {
+    metrics.syncsSent.increment();
+    return Message.newBuilder()
+        .setType(Type.SYNC)
+        .setSender(memberId)
+        .setDigest(membershipTable.getDigest())
+        .build();
+  }
+
+  /**
+   * @return the SYNC_ACK chunks answering the SYNC, the last one carrying our digest, or none if the views agree
+   */
+  List<Message> answer(final Message sync) {
+    final long buckets = membershipTable.diff(sync.getDigest());
+    if (buckets == 0L) {
+      return Collections.emptyList();
+    }
+    metrics.syncBucketsDiffering.add(Long.bitCount(buckets));
+    return split(membershipTable.toEntries(buckets), membershipTable.getDigest());
+  }
+
+  /**
+   * Called once the entries of the SYNC_ACK are merged.
+   * @return the SYNC_ACK chunks to push back, or none if it does not ask for them or the views now agree
+   */
+  List<Message> pushBack(final Message syncAck) {
+    if (syncAck.getDigest() == null) {
+      return Collections.emptyList();
+    }
+    final long buckets = membershipTable.diff(syncAck.getDigest());
+    if (buckets == 0L) {
+      return Collections.emptyList();
+    }
+    return split(membershipTable.toEntries(buckets), null);
+  }
+
+  // chunks that fit into a datagram each. the digest goes on the last one, after the entries it is compared with.
+  private List<Message> split(final List<Entry> entries, final List<Long> digest) {
+    final int chunkCount = Math.max(1, (entries.size() + chunkSize - 1) / chunkSize);
+    final List<Message> chunks = new ArrayList<>(chunkCount);
+    for (int i = 0; i < chunkCount; ++i) {
+      final int from = i * chunkSize;
+      final int to = Math.min(entries.size(), from + chunkSize);
+      chunks.add(Message.newBuilder()
+          .setType(Type.SYNC_ACK)
+          .setSender(memberId)
+          .setTable(new ArrayList<>(entries.subList(from, to)))
+          .setDigest(i == chunkCount - 1 ? digest : null)
+          .build());
+    }
+    return chunks;
+  }
+}
@@ -0,0 +1,186 @@
+package edu.upenn.ds.team.mp2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static edu.upenn.ds.team.mp2.Utils.memberIdToString;
+
+/**
+ * Change table (CT) piggybacked on ACK messages.
+ * Every change gets a sequence number from a local counter, so that a pinger can tell us the latest
+ * sequence it has received from us and we only send the changes after it.
+ * Each change counts how many times it has been sent and is retired after retransmitMult * log10(N + 1) sends,
+ * so dissemination scales with log(N) whatever the load is. FAILED, LEFT and SUSPECTED changes are sent first,
+ * and an ACK carries no more changes than fit into the byte budget.
+ * The change of a member, its sequence and its count live on its {@link MemberRecord}. The table only lists the
+ * records with a pending change.
+ */
+final class ChangeTable {
+
+  private static final Logger LOG = Logger.getLogger(ChangeTable.class.getName());
+
+  // FAILED, LEFT and SUSPECTED first, then the changes sent fewer times, then the older ones
+  private static final Comparator<MemberRecord> PRIORITY = new Comparator<MemberRecord>() {
+    @Override
+    public int compare(final MemberRecord a, final MemberRecord b) {
+      if (isUrgent(a) != isUrgent(b)) {
+        return isUrgent(a) ? -1 : 1;
+      }
+      if (a.transmits != b.transmits) {
+        return a.transmits < b.transmits ? -1 : 1;
+      }
+      return Long.compare(a.changeSeq, b.changeSeq);
+    }
+  };
+
+  private final int capacity;
+  private final int retransmitMult;
+  private final int budgetBytes;
+  // the membership table, to get N for the retransmit limit
+  private final MembershipTable membershipTable;
+  // the records with a pending change. at most one change per member, a newer change replaces the older one.
+  private final ArrayList<MemberRecord> pending = new ArrayList<>();
+  // re-used by select() under the lock
+  private final ArrayList<MemberRecord> candidates = new ArrayList<>();
+  private long lastSeq = 0;
+  private long evictedCount = 0;
+
+  ChangeTable(final int capacity, final int retransmitMult, final int budgetBytes,
+              final MembershipTable membershipTable) {
+    this.capacity = capacity;
+    this.retransmitMult = retransmitMult;
+    this.budgetBytes = budgetBytes;
+    this.membershipTable = membershipTable;
+  }
+
+  // sequence numbers are assigned under the lock together with the insertion,
+  // so every change up to lastSeq is visible to select().
+  void put(final MemberRecord record, final Status status, final long incarnation) {
+    put(record, status, incarnation, 0L);
+  }
+
+  /**
+   * @param sourceId the member suspecting it, for a SUSPECTED change
+   */
+  synchronized void put(final MemberRecord record, final Status status, final long incarnation,
+                        final long sourceId) {
+    if (record.changeSlot < 0) {
+      if (pending.size() >= capacity) {
+        evict();
+      }
+      record.changeSlot = pending.size();
+      pending.add(record);
+    }
+    record.change = new Entry(record.memberId, status, incarnation, sourceId);
+    record.changeSeq = ++lastSeq;
+    record.transmits = 0;
+  }
+
+  /**
+   * Adds the changes after the given sequence number to the list, most important first, until the byte budget is
+   * used up. The changes added are counted as sent once.
+   * @return the sequence number the pinger has received up to. It is lower than the latest one
+   *     if some changes did not fit, so that they are sent next time.
+   */
+  synchronized long select(final long seq, final List<Entry> entries) {
+    candidates.clear();
+    for (final MemberRecord record : pending) {
+      if (record.changeSeq > seq) {
+        candidates.add(record);
+      }
+    }
+    Collections.sort(candidates, PRIORITY);
+
+    final int retransmitLimit = getRetransmitLimit();
+    long ackSeq = lastSeq;
+    int bytes = 0;
+    for (final MemberRecord record : candidates) {
+      final int size = encodedSize(record.change);
+      if (bytes + size > budgetBytes) {
+        // not sent this time
+        ackSeq = Math.min(ackSeq, record.changeSeq - 1);
+        continue;
+      }
+      bytes += size;
+      entries.add(record.change);
+      if (++record.transmits >= retransmitLimit) {
+        // disseminated enough. the pinger has received it, so the sequence does not move back.
+        remove(record);
+      }
+    }
+    candidates.clear();
+    return ackSeq;
+  }
+
+  synchronized int size() {
+    return pending.size();
+  }
+
+  /**
+   * @return the number of changes dropped for lack of room before they were sent enough times
+   */
+  synchronized long getEvictedCount() {
+    return evictedCount;
+  }
+
+  private int getRetransmitLimit() {
+    final int n = membershipTable.size();
+    return retransmitMult * Math.max(1, (int) Math.ceil(Math.log10(n + 1)));
+  }
+
+  // drops the most disseminated change, the oldest one among them
+  private void evict() {
+    MemberRecord victim = null;
+    for (final MemberRecord record : pending) {
+      if (victim == null || record.transmits > victim.transmits
+          || (record.transmits == victim.transmits && record.changeSeq < victim.changeSeq)) {
+        victim = record;
+      }
+    }
+    if (victim == null) {
+      return;
+    }
+    remove(victim);
+    if (victim.transmits < getRetransmitLimit()) {
+      ++evictedCount;
+      LOG.log(Level.FINE, "Change table is full. Evict the change of {0} sent {1} times",
+          new Object[]{memberIdToString(victim.memberId), victim.transmits});
+    }
+  }
+
+  // moves the last record into the hole
+  private void remove(final MemberRecord record) {
+    final MemberRecord last = pending.remove(pending.size() - 1);
+    if (last != record) {
+      pending.set(record.changeSlot, last);
+      last.changeSlot = record.changeSlot;
+    }
+    record.changeSlot = -1;
+    record.change = null;
+  }
+
+  private static boolean isUrgent(final MemberRecord record) {
+    final Status status = record.change.getStatus();
+    return status == Status.FAILED || status == Status.LEFT || status == Status.SUSPECTED;
+  }
+
+  // member, status index, incarnation, source
+  private static int encodedSize(final Entry entry) {
+    return varLongSize(entry.getMember()) + 1 + varLongSize(entry.getIncarnation()) + varLongSize(entry.getSource());
+  }
+
+  // avro varint length of a zigzag encoded long
+  private static int varLongSize(final long value) {
+    long n = (value << 1) ^ (value >> 63);
+    int size = 1;
+    while ((n & ~0x7FL) != 0) {
+      n >>>= 7;
+      ++size;
+    }
+    return size;
+  }
+}
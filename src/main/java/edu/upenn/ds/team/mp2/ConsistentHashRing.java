@@ -0,0 +1,258 @@
+package edu.upenn.ds.team.mp2;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Consistent-hash ring over the live members (ACTIVE and SUSPECTED), for sharding work across them.
+ * Each member owns virtualNodes points on the ring, and a key belongs to the first point at or after its hash.
+ * The ring is a persistent treap: a change copies only the O(log N) nodes on its path and is published as a new
+ * immutable {@link Snapshot} with a higher version, so readers take one volatile read and never wait for writers.
+ */
+public final class ConsistentHashRing {
+
+  private final int virtualNodes;
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(null, 0, 0, 0L));
+
+  ConsistentHashRing(final int virtualNodes) {
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException("Invalid number of virtual nodes: " + virtualNodes);
+    }
+    this.virtualNodes = virtualNodes;
+  }
+
+  /**
+   * @return the current ring. It never changes, so a caller can do several lookups on a consistent view.
+   */
+  public Snapshot getSnapshot() {
+    return snapshot.get();
+  }
+
+  // a server updates its ring on its protocol thread only, but a change is still retried if another writer wins
+  void add(final long memberId) {
+    while (true) {
+      final Snapshot prev = snapshot.get();
+      Node root = prev.root;
+      for (int i = 0; i < virtualNodes; ++i) {
+        root = insert(root, pointOf(memberId, i), memberId);
+      }
+      if (root == prev.root) {
+        return; // already on the ring
+      }
+      if (snapshot.compareAndSet(prev, new Snapshot(root, prev.memberCount + 1,
+          prev.pointCount + virtualNodes, prev.version + 1))) {
+        return;
+      }
+    }
+  }
+
+  void remove(final long memberId) {
+    while (true) {
+      final Snapshot prev = snapshot.get();
+      Node root = prev.root;
+      for (int i = 0; i < virtualNodes; ++i) {
+        root = delete(root, pointOf(memberId, i), memberId);
+      }
+      if (root == prev.root) {
+        return; // not on the ring
+      }
+      if (snapshot.compareAndSet(prev, new Snapshot(root, prev.memberCount - 1,
+          prev.pointCount - virtualNodes, prev.version + 1))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Mixes a key into a position on the ring (the finalizer of MurmurHash3).
+   */
+  public static long hash(final long key) {
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static long pointOf(final long memberId, final int replica) {
+    return hash(memberId + 0x9E3779B97F4A7C15L * (replica + 1));
+  }
+
+  // the priority of a node is derived from its point, so the shape of the treap depends only on its contents
+  private static long priorityOf(final long point) {
+    return hash(point ^ 0x5DEECE66DL);
+  }
+
+  // returns the same root if the point is already taken
+  private static Node insert(final Node node, final long point, final long memberId) {
+    if (node == null) {
+      return new Node(point, memberId, null, null);
+    }
+    if (point == node.point) {
+      return node;
+    }
+    if (point < node.point) {
+      final Node left = insert(node.left, point, memberId);
+      if (left == node.left) {
+        return node;
+      }
+      final Node copy = new Node(node.point, node.memberId, left, node.right);
+      return priorityOf(left.point) > priorityOf(copy.point) ? rotateRight(copy) : copy;
+    }
+    final Node right = insert(node.right, point, memberId);
+    if (right == node.right) {
+      return node;
+    }
+    final Node copy = new Node(node.point, node.memberId, node.left, right);
+    return priorityOf(right.point) > priorityOf(copy.point) ? rotateLeft(copy) : copy;
+  }
+
+  // returns the same root if the point is not there or belongs to another member
+  private static Node delete(final Node node, final long point, final long memberId) {
+    if (node == null) {
+      return null;
+    }
+    if (point < node.point) {
+      final Node left = delete(node.left, point, memberId);
+      return left == node.left ? node : new Node(node.point, node.memberId, left, node.right);
+    }
+    if (point > node.point) {
+      final Node right = delete(node.right, point, memberId);
+      return right == node.right ? node : new Node(node.point, node.memberId, node.left, right);
+    }
+    if (node.memberId != memberId) {
+      return node;
+    }
+    return merge(node.left, node.right);
+  }
+
+  // joins two treaps whose points are all smaller on the left
+  private static Node merge(final Node left, final Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (priorityOf(left.point) > priorityOf(right.point)) {
+      return new Node(left.point, left.memberId, left.left, merge(left.right, right));
+    }
+    return new Node(right.point, right.memberId, merge(left, right.left), right.right);
+  }
+
+  // both rotate a node copied by the caller, so the children copied here are the only other new nodes
+  private static Node rotateRight(final Node node) {
+    final Node left = node.left;
+    return new Node(left.point, left.memberId, left.left,
+        new Node(node.point, node.memberId, left.right, node.right));
+  }
+
+  private static Node rotateLeft(final Node node) {
+    final Node right = node.right;
+    return new Node(right.point, right.memberId, new Node(node.point, node.memberId, node.left, right.left),
+        right.right);
+  }
+
+  private static final class Node {
+    private final long point;
+    private final long memberId;
+    private final Node left;
+    private final Node right;
+
+    private Node(final long point, final long memberId, final Node left, final Node right) {
+      this.point = point;
+      this.memberId = memberId;
+      this.left = left;
+      this.right = right;
+    }
+  }
+
+  /**
+   * Immutable state of the ring.
+   */
+  public static final class Snapshot {
+    private final Node root;
+    private final int memberCount;
+    private final int pointCount;
+    private final long version;
+
+    private Snapshot(final Node root, final int memberCount, final int pointCount, final long version) {
+      this.root = root;
+      this.memberCount = memberCount;
+      this.pointCount = pointCount;
+      this.version = version;
+    }
+
+    /**
+     * @return the number of changes applied before this snapshot. A newer snapshot has a higher version.
+     */
+    public long getVersion() {
+      return version;
+    }
+
+    public int getMemberCount() {
+      return memberCount;
+    }
+
+    /**
+     * @param keyHash the position of the key, e.g., {@link ConsistentHashRing#hash} of it
+     * @return the member owning the key, or 0 if the ring is empty
+     */
+    public long getOwner(final long keyHash) {
+      final Node node = ceiling(keyHash);
+      return node == null ? 0L : node.memberId;
+    }
+
+    /**
+     * Fills the array with the distinct members following the key on the ring, the owner first,
+     * e.g., to pick replicas.
+     * @return the number of members filled in
+     */
+    public int getOwners(final long keyHash, final long[] owners) {
+      final int limit = Math.min(owners.length, memberCount);
+      int count = 0;
+      long point = keyHash;
+      // one lap at most. the point after Long.MAX_VALUE overflows to Long.MIN_VALUE, i.e., wraps around.
+      for (int visited = 0; count < limit && visited < pointCount; ++visited) {
+        final Node node = ceiling(point);
+        if (!contains(owners, count, node.memberId)) {
+          owners[count++] = node.memberId;
+        }
+        point = node.point + 1;
+      }
+      return count;
+    }
+
+    // the first point at or after the given one, wrapping around to the smallest point
+    private Node ceiling(final long point) {
+      Node node = root;
+      Node found = null;
+      while (node != null) {
+        if (node.point >= point) {
+          found = node;
+          node = node.left;
+        } else {
+          node = node.right;
+        }
+      }
+      if (found != null || root == null) {
+        return found;
+      }
+      node = root;
+      while (node.left != null) {
+        node = node.left;
+      }
+      return node;
+    }
+
+    private static boolean contains(final long[] members, final int count, final long memberId) {
+      for (int i = 0; i < count; ++i) {
+        if (members[i] == memberId) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
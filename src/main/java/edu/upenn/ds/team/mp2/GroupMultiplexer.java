@@ -0,0 +1,280 @@
+package edu.upenn.ds.team.mp2;
+
+import edu.upenn.ds.team.metrics.MetricsRegistry;
+import edu.upenn.ds.team.service.ChannelHandlerFactory;
+import edu.upenn.ds.team.service.Compression;
+import edu.upenn.ds.team.service.NettyNetworkService;
+import edu.upenn.ds.team.service.SimpleChannelHandlerFactory;
+import edu.upenn.ds.team.service.TrafficRecorder;
+import edu.upenn.ds.team.service.Transport;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hosts many independent gossip groups, e.g., one per tenant or shard, on one UDP socket, one event loop and one
+ * suspicion timer. Every message carries the group of its sender, and an inbound message is handed to the member
+ * of that group in this process. Each group keeps its own membership, probing and dissemination, while the threads
+ * and the port stay the same whatever the number of groups.
+ * The traffic is counted both in the registry of the multiplexer and in the metrics of the server of each group.
+ * A server joins a group through {@link Server.Builder#setMultiplexer}.
+ */
+public final class GroupMultiplexer {
+
+  private static final Logger LOG = Logger.getLogger(GroupMultiplexer.class.getName());
+
+  private final int port;
+  private final NettyNetworkService service;
+  private final HashedWheelTimer timer = SuspicionTimer.newTimer();
+  private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+  private final ProtocolMetrics totalMetrics = new ProtocolMetrics(metricsRegistry);
+  // the transport of the member of each group in this process
+  private final ConcurrentHashMap<Integer, GroupTransport> groups = new ConcurrentHashMap<>();
+  // messages to a group that has no member here
+  private final LongAdder unroutedMessages = metricsRegistry.counter("gossip_unrouted_messages_total");
+  // inbound messages failing in the pipeline. the socket stays open for the other groups.
+  private final LongAdder inboundErrors = metricsRegistry.counter("gossip_inbound_errors_total");
+
+  public GroupMultiplexer(final int port, final boolean nativeTransport, final Compression compression) {
+    this.port = port;
+    final ChannelHandlerFactory outboundChannelHandlerFactory =
+        new SimpleChannelHandlerFactory(OutboundChannelHandler.class);
+    this.service = NettyNetworkService.newBuilder()
+        .setServerGroupNum(1) // one event loop for all the groups
+        .setSharedSocket(true)
+        .setReuseDecodedMessages(true) // every group is handled on the event loop receiving its messages
+        .setNativeTransport(nativeTransport)
+        .setTrafficRecorder(new GroupTrafficRecorder())
+        .setCoalesceBudget(Server.DATAGRAM_BUDGET_BYTES) // the messages of all the groups are packed together
+        .setCompression(compression, Server.COMPRESSION_THRESHOLD_BYTES)
+        .addServerChannelHandlerFactory(new ChannelHandlerFactory() {
+          @Override
+          public ChannelHandler newInstance() {
+            return new GroupInboundChannelHandler();
+          }
+        })
+        .addServerChannelHandlerFactory(outboundChannelHandlerFactory)
+        .addClientChannelHandlerFactory(new SimpleChannelHandlerFactory(ClientInboundChannelHandler.class))
+        .addClientChannelHandlerFactory(outboundChannelHandlerFactory)
+        .setMessageType(Message.class)
+        .build();
+  }
+
+  public void start() {
+    if (!service.start(port)) {
+      throw new IllegalStateException("Failed to start the transport at port " + port);
+    }
+    LOG.log(Level.INFO, "Group multiplexer gets started at port {0}", port);
+  }
+
+  // the servers of the groups are closed first
+  public void close() {
+    if (!groups.isEmpty()) {
+      LOG.log(Level.WARNING, "Close the multiplexer with {0} groups still running", groups.size());
+    }
+    service.stop();
+    service.waitForClose();
+    timer.stop();
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * @return the number of groups with a running member
+   */
+  public int getGroupCount() {
+    return groups.size();
+  }
+
+  public MetricsRegistry getMetricsRegistry() {
+    return metricsRegistry;
+  }
+
+  Timer getTimer() {
+    return timer;
+  }
+
+  /**
+   * @return a transport for the member of the group. It receives the messages of the group once started,
+   *     and its traffic is recorded in the given metrics.
+   */
+  Transport newTransport(final int group, final MembershipProtocol protocol, final ProtocolMetrics metrics) {
+    return new GroupTransport(group, protocol, metrics);
+  }
+
+  // called by the codecs, once the group of a message is known
+  private final class GroupTrafficRecorder implements TrafficRecorder {
+
+    @Override
+    public void onOutbound(final Object msg, final int bytes) {
+      totalMetrics.onOutbound(msg, bytes);
+      final GroupTransport transport = getTransport(msg);
+      if (transport != null) {
+        transport.metrics.onOutbound(msg, bytes);
+      }
+    }
+
+    @Override
+    public void onInbound(final Object msg, final int bytes) {
+      totalMetrics.onInbound(msg, bytes);
+      final GroupTransport transport = getTransport(msg);
+      if (transport != null) {
+        transport.metrics.onInbound(msg, bytes);
+      }
+    }
+
+    // the group cannot be told
+    @Override
+    public void onCorrupted(final int bytes) {
+      totalMetrics.onCorrupted(bytes);
+    }
+
+    private GroupTransport getTransport(final Object msg) {
+      return msg instanceof Message ? groups.get(((Message) msg).getGroup()) : null;
+    }
+  }
+
+  private final class GroupInboundChannelHandler extends SimpleChannelInboundHandler<Message> {
+
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, final Message msg) throws Exception {
+      final GroupTransport transport = groups.get(msg.getGroup());
+      if (transport == null) {
+        unroutedMessages.increment();
+        if (LOG.isLoggable(Level.FINEST)) {
+          LOG.log(Level.FINEST, "Drop a {0} message to group {1}", new Object[]{msg.getType(), msg.getGroup()});
+        }
+        return;
+      }
+      transport.protocol.dispatch(msg);
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+      // closing the channel would cut every group off
+      inboundErrors.increment();
+      LOG.log(Level.FINE, "Exception is thrown in inbound channel. Drop the message", cause);
+    }
+  }
+
+  /**
+   * The shared socket as seen by the member of one group. Outgoing messages are stamped with the group.
+   */
+  private final class GroupTransport implements Transport {
+    private final int group;
+    private final MembershipProtocol protocol;
+    private final ProtocolMetrics metrics;
+    private volatile boolean started = false;
+    private volatile double dropRate = 0.0D;
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final GenericFutureListener<Future<Void>> sendListener = new GenericFutureListener<Future<Void>>() {
+      @Override
+      public void operationComplete(final Future<Void> future) {
+        if (!future.isSuccess()) {
+          sendFailures.incrementAndGet();
+        }
+      }
+    };
+
+    private GroupTransport(final int group, final MembershipProtocol protocol, final ProtocolMetrics metrics) {
+      this.group = group;
+      this.protocol = protocol;
+      this.metrics = metrics;
+    }
+
+    // the port is the one of the multiplexer
+    @Override
+    public boolean start(final int port) {
+      if (port != GroupMultiplexer.this.port) {
+        LOG.log(Level.WARNING, "Group {0} is multiplexed at port {1}, not {2}",
+            new Object[]{group, GroupMultiplexer.this.port, port});
+        return false;
+      }
+      if (groups.putIfAbsent(group, this) != null) {
+        LOG.log(Level.WARNING, "Group {0} already has a member in this process", group);
+        return false;
+      }
+      started = true;
+      return true;
+    }
+
+    @Override
+    public Future<Void> sendAsync(final InetSocketAddress address, final Object obj) {
+      return sendAsync(address, obj, null);
+    }
+
+    @Override
+    public Future<Void> sendAsync(final InetSocketAddress address, final Object obj,
+                                  final GenericFutureListener<? extends Future<? super Void>> listener) {
+      final Future<Void> future;
+      if (ThreadLocalRandom.current().nextDouble() < dropRate) {
+        droppedMessages.incrementAndGet();
+        future = ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+      } else {
+        ((Message) obj).setGroup(group);
+        future = service.sendAsync(address, obj, sendListener);
+      }
+      if (listener != null) {
+        future.addListener(listener);
+      }
+      return future;
+    }
+
+    @Override
+    public void flush() {
+      service.flush();
+    }
+
+    @Override
+    public EventLoop getEventLoop() {
+      return service.getEventLoop();
+    }
+
+    // leaves the socket open for the other groups
+    @Override
+    public boolean stop() {
+      if (!started) {
+        return false;
+      }
+      started = false;
+      return groups.remove(group, this);
+    }
+
+    @Override
+    public boolean waitForClose() {
+      return true;
+    }
+
+    @Override
+    public void setDropRate(final double dropRate) {
+      this.dropRate = dropRate;
+    }
+
+    @Override
+    public long getSendFailureCount() {
+      return sendFailures.get();
+    }
+
+    @Override
+    public long getDroppedMessageCount() {
+      return droppedMessages.get();
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package edu.upenn.ds.team.mp2;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Members that asked us to ping a target on their behalf (PING_REQ).
+ * When the target answers, each of them gets an INDIRECT_ACK. Requests without an answer simply expire.
+ */
+final class IndirectProbeTable {
+
+  private final Cache<Long, Set<Long>> requesters;
+
+  IndirectProbeTable(final long timeoutMs) {
+    this.requesters = CacheBuilder.newBuilder()
+        .expireAfterWrite(timeoutMs, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  void addRequester(final long targetId, final long requesterId) {
+    try {
+      requesters.get(targetId, new Callable<Set<Long>>() {
+        @Override
+        public Set<Long> call() {
+          return Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        }
+      }).add(requesterId);
+    } catch (final ExecutionException e) {
+      // never happens since the loader does not throw
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the members waiting for an answer from the target, or null if nobody is
+   */
+  Set<Long> takeRequesters(final long targetId) {
+    return requesters.asMap().remove(targetId);
+  }
+}
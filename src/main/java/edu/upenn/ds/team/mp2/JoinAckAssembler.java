@@ -0,0 +1,84 @@
+package edu.upenn.ds.team.mp2;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Joiner side of a join.
+ * Keeps track of the JOIN_ACK chunks received from the introducer. The entries of each chunk are merged as soon as
+ * it arrives, so only the set of received chunks is kept here.
+ * A JOIN may go to several introducers. The first one answering wins and the chunks of the others are dropped.
+ * If the introducer answers again with a new snapshot, e.g., because the retransmitted chunks were gone, the
+ * assembly starts over with it. The entries merged from the older snapshot stay, they are only older news.
+ */
+final class JoinAckAssembler {
+
+  private Long introducerId;
+  private long snapshotId = 0;
+  private int chunkCount = 0;
+  private final BitSet received = new BitSet();
+  private boolean complete = false;
+
+  /**
+   * @return true if the chunk has not been received before and its entries should be merged
+   */
+  synchronized boolean accept(final Message msg) {
+    if (complete) {
+      return false;
+    }
+    if (introducerId == null) {
+      introducerId = msg.getSender();
+    } else if (!introducerId.equals(msg.getSender())) {
+      return false; // another introducer
+    }
+    if (snapshotId != msg.getSnapshot()) {
+      snapshotId = msg.getSnapshot();
+      chunkCount = Math.max(1, msg.getChunkCount());
+      received.clear();
+    }
+    final int chunk = msg.getChunk();
+    if (chunk < 0 || chunk >= chunkCount || received.get(chunk)) {
+      return false;
+    }
+    received.set(chunk);
+    complete = received.cardinality() == chunkCount;
+    return true;
+  }
+
+  synchronized boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * @return the introducer whose chunks are accepted, or null if no chunk has been received
+   */
+  synchronized Long getIntroducerId() {
+    return introducerId;
+  }
+
+  /**
+   * @return the snapshot whose chunks are being assembled, or 0 if no chunk has been received
+   */
+  synchronized long getSnapshotId() {
+    return snapshotId;
+  }
+
+  synchronized int getReceivedCount() {
+    return received.cardinality();
+  }
+
+  /**
+   * @return the indices of the chunks not received yet, or null if no chunk has been received
+   */
+  synchronized List<Integer> getMissingChunks() {
+    if (introducerId == null) {
+      return null;
+    }
+    final List<Integer> missing = new ArrayList<>();
+    for (int i = received.nextClearBit(0); i < chunkCount; i = received.nextClearBit(i + 1)) {
+      missing.add(i);
+    }
+    return missing;
+  }
+}
@@ -0,0 +1,67 @@
+package edu.upenn.ds.team.mp2;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Introducer side of a join.
+ * Splits the membership table into JOIN_ACK chunks that fit into a datagram each, and keeps them for a while
+ * so that a joiner can ask again for the chunks it has missed.
+ * Every split gets a new snapshot id, so that the joiner does not mix the chunks of two snapshots.
+ */
+final class JoinAckSender {
+
+  private final long memberId;
+  private final int chunkSize;
+  private final Cache<Long, List<Message>> snapshots;
+  private final AtomicLong lastSnapshotId = new AtomicLong();
+
+  JoinAckSender(final long memberId, final int chunkSize, final long retainMs) {
+    this.memberId = memberId;
+    this.chunkSize = chunkSize;
+    this.snapshots = CacheBuilder.newBuilder()
+        .expireAfterWrite(retainMs, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Splits the table into chunks for the joiner and keeps them for retransmission.
+   */
+  List<Message> split(final long joinerId, final List<Entry> table) {
+    final int chunkCount = Math.max(1, (table.size() + chunkSize - 1) / chunkSize);
+    final long snapshotId = lastSnapshotId.incrementAndGet();
+    final List<Message> chunks = new ArrayList<>(chunkCount);
+    for (int i = 0; i < chunkCount; ++i) {
+      final int from = i * chunkSize;
+      final int to = Math.min(table.size(), from + chunkSize);
+      chunks.add(Message.newBuilder()
+          .setSender(memberId)
+          .setType(Type.JOIN_ACK)
+          .setTable(new ArrayList<>(table.subList(from, to)))
+          .setChunk(i)
+          .setChunkCount(chunkCount)
+          .setSnapshot(snapshotId)
+          .build());
+    }
+    snapshots.put(joinerId, Collections.unmodifiableList(chunks));
+    return chunks;
+  }
+
+  /**
+   * @return the chunks of the snapshot previously sent to the joiner, or null if they are gone or have been
+   *     replaced by a newer snapshot
+   */
+  List<Message> getChunks(final long joinerId, final long snapshotId) {
+    final List<Message> chunks = snapshots.getIfPresent(joinerId);
+    if (chunks == null || chunks.get(0).getSnapshot() != snapshotId) {
+      return null;
+    }
+    return chunks;
+  }
+}
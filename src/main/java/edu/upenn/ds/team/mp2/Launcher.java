@@ -1,9 +1,15 @@
 package edu.upenn.ds.team.mp2;
 
-import edu.upenn.ds.team.service.NettyNetworkService;
+import edu.upenn.ds.team.metrics.MetricsHttpServer;
+import edu.upenn.ds.team.metrics.MetricsRegistry;
+import edu.upenn.ds.team.service.Compression;
 import org.apache.commons.cli.*;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,11 +44,21 @@ them with CLI.
 
   
 Format is as follows:
---conn [IP:PORT] --port [PORT_LOCAL] --packet_drop [DROP_RATE]
+--conn [IP:PORT,...] --port [PORT_LOCAL] --packet_drop [DROP_RATE] [--native_epoll] --metrics_port [PORT]
+--compression [none|snappy|deflate] --snapshot [FILE]
 --conn is used to set the introducer's address [IP:PORT]. If it is not set, it is considered as the 
 first node in the group. Thus, this option is always required except for the first server in the group.
+  Several seeds can be given separated by commas. JOINs go to a few of them at once and to more of them on
+  timeout, and the first one answering is used.
 --port is used to set the port of the server. The value is by default 7000.
 --packet_drop is used to set Message Loss Rate between 0 and 1. the default value is 0.
+--native_epoll is used to spread inbound packets over several sockets. NIO is used if epoll is unavailable.
+--metrics_port is used to serve the metrics in plain text at http://[IP]:[PORT]/metrics. The metrics are always
+  available through JMX.
+--compression is used to compress large messages. snappy is fast, deflate is denser. The default value is none.
+  Members with different settings can talk to each other.
+--snapshot is used to save the membership list to a file every few seconds and to load it on start. If --conn
+  is not set, the server joins through one of the members in the file.
 */
   private static CommandLine parseCommandLine(final String[] args) {
     //https://commons.apache.org/proper/commons-cli/usage.html
@@ -50,8 +66,8 @@ first node in the group. Thus, this option is always required except for the fir
     final Options options = new Options();
     options.addOption(Option.builder()
         .longOpt("conn")//long operation name double slash --conn
-        .argName("[IP]:[PORT]") //the name of the argument value for the usage statement.like description
-        .desc("Connection information to an introducer")//a description of the function of the option
+        .argName("[IP]:[PORT],...") //the name of the argument value for the usage statement.like description
+        .desc("Connection information to introducers")//a description of the function of the option
         .hasArg()//The hasArg indicate if the parameter accepts an argument.
         .build());
     options.addOption(Option.builder()
@@ -66,6 +82,28 @@ first node in the group. Thus, this option is always required except for the fir
         .desc("Packet drop rate (default=0)")
         .hasArg()
         .build());
+    options.addOption(Option.builder()
+        .longOpt("native_epoll")
+        .desc("Use native epoll with one SO_REUSEPORT socket per server thread if available")
+        .build());
+    options.addOption(Option.builder()
+        .longOpt("metrics_port")
+        .argName("PORT")
+        .desc("Port number of the plain-text metrics endpoint (default=disabled)")
+        .hasArg()
+        .build());
+    options.addOption(Option.builder()
+        .longOpt("compression")
+        .argName("none|snappy|deflate")
+        .desc("Compression of large messages (default=none)")
+        .hasArg()
+        .build());
+    options.addOption(Option.builder()
+        .longOpt("snapshot")
+        .argName("FILE")
+        .desc("File to persist the membership list in (default=disabled)")
+        .hasArg()
+        .build());
 
     try {
       //command line processing Stage 2 : parsing
@@ -88,6 +126,17 @@ public class InetSocketAddress extends SocketAddress
     final String[] split = str.split(":");
     return new InetSocketAddress(split[0], Integer.parseInt(split[1]));
   }
+
+  // [IP]:[PORT],[IP]:[PORT],...
+  static List<InetSocketAddress> parseAddresses(final String str) {
+    final List<InetSocketAddress> addresses = new ArrayList<>();
+    for (final String address : str.split(",")) {
+      if (!address.trim().isEmpty()) {
+        addresses.add(parseAddress(address.trim()));
+      }
+    }
+    return addresses;
+  }
 /*
 user can create a server, it must have port, it may have introducer address
 */
@@ -97,6 +146,8 @@ user can create a server, it must have port, it may have introducer address
     if (cmd == null) {
       return;
     }
+    //initialize a new server
+    final Server.Builder serverBuilder = Server.newBuilder();
     //boolean hasOption : Indicate if the option has been specified or not
     if (cmd.hasOption("packet_drop")) {
       //String getOptionValue : Return the value of the option
@@ -106,18 +157,50 @@ user can create a server, it must have port, it may have introducer address
         return;
       }
       LOG.log(Level.INFO, "Packet drop rate = {0}", packetDropRate);
-      NettyNetworkService.dropRate = packetDropRate;
+      serverBuilder.setDropRate(packetDropRate);
     }
-    //initialize a new server
-    final Server.Builder serverBuilder = Server.newBuilder();
     //this port is the server itself.
+    int port = Server.DEFAULT_PORT;
     if (cmd.hasOption("port")) {
-      serverBuilder.setPort(Integer.valueOf(cmd.getOptionValue("port")));
+      port = Integer.valueOf(cmd.getOptionValue("port"));
+      serverBuilder.setPort(port);
     }
     //[IP]:[PORT] this is introducer address
     if (cmd.hasOption("conn")) {
-      serverBuilder.setIntroduerAddress(parseAddress(cmd.getOptionValue("conn")));
+      serverBuilder.setIntroducerAddresses(parseAddresses(cmd.getOptionValue("conn")));
+    }
+    serverBuilder.setNativeTransport(cmd.hasOption("native_epoll"));
+    if (cmd.hasOption("compression")) {
+      try {
+        serverBuilder.setCompression(Compression.valueOf(cmd.getOptionValue("compression").toUpperCase()));
+      } catch (final IllegalArgumentException e) {
+        System.out.println("Invalid compression:" + cmd.getOptionValue("compression"));
+        return;
+      }
+    }
+    if (cmd.hasOption("snapshot")) {
+      serverBuilder.setSnapshotPath(Paths.get(cmd.getOptionValue("snapshot")));
+    }
+    final Server server = serverBuilder.build();
+
+    final MetricsRegistry metricsRegistry = server.getMetricsRegistry();
+    metricsRegistry.registerMBean("edu.upenn.ds.team:type=Metrics,port=" + port);
+    MetricsHttpServer metricsServer = null;
+    if (cmd.hasOption("metrics_port")) {
+      try {
+        metricsServer = new MetricsHttpServer(Integer.valueOf(cmd.getOptionValue("metrics_port")), metricsRegistry);
+        metricsServer.start();
+      } catch (final IOException e) {
+        LOG.log(Level.WARNING, "Failed to start the metrics endpoint", e);
+      }
+    }
+    try {
+      server.run();
+    } finally {
+      if (metricsServer != null) {
+        metricsServer.stop();
+      }
+      metricsRegistry.unregisterMBean();
     }
-    serverBuilder.build().run();
   }
 }
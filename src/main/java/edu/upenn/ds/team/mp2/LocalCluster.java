@@ -0,0 +1,133 @@
+package edu.upenn.ds.team.mp2;
+
+import edu.upenn.ds.team.service.InMemoryHub;
+import io.netty.util.HashedWheelTimer;
+import org.apache.commons.cli.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * LocalCluster runs many servers in one process over the in-memory transport,
+ * to measure CPU and memory per member and to profile the protocol without sockets.
+ */
+/*
+Format is as follows:
+--members [NUM] --threads [NUM] --packet_drop [DROP_RATE] --duration [SECONDS]
+--members is the number of servers. The value is by default 1000.
+--threads is the number of event loop threads shared by all the servers. By default the number of cores.
+--packet_drop is used to set Message Loss Rate between 0 and 1. the default value is 0.
+--duration is how long the cluster runs after all the servers joined. The value is by default 30.
+*/
+public final class LocalCluster {
+
+  private static final Logger LOG = Logger.getLogger(LocalCluster.class.getName());
+
+  // Not be instantiated
+  private LocalCluster() {}
+
+  private static CommandLine parseCommandLine(final String[] args) {
+    final Options options = new Options();
+    options.addOption(Option.builder()
+        .longOpt("members")
+        .argName("NUM")
+        .desc("Number of servers (default=1000)")
+        .hasArg()
+        .build());
+    options.addOption(Option.builder()
+        .longOpt("threads")
+        .argName("NUM")
+        .desc("Number of event loop threads (default=number of cores)")
+        .hasArg()
+        .build());
+    options.addOption(Option.builder()
+        .longOpt("packet_drop")
+        .argName("[RATE]")
+        .desc("Packet drop rate (default=0)")
+        .hasArg()
+        .build());
+    options.addOption(Option.builder()
+        .longOpt("duration")
+        .argName("SECONDS")
+        .desc("Seconds to run after all the servers joined (default=30)")
+        .hasArg()
+        .build());
+
+    try {
+      final CommandLineParser parser = new DefaultParser();
+      return parser.parse(options, args);
+    } catch (final ParseException e) {
+      System.out.println(e.getMessage());
+      return null;
+    }
+  }
+
+  public static void main(final String[] args) throws InterruptedException {
+    final CommandLine cmd = parseCommandLine(args);
+    if (cmd == null) {
+      return;
+    }
+    final int memberNum = Integer.parseInt(cmd.getOptionValue("members", "1000"));
+    final int threadNum = Integer.parseInt(cmd.getOptionValue("threads",
+        String.valueOf(Runtime.getRuntime().availableProcessors())));
+    final double packetDropRate = Double.parseDouble(cmd.getOptionValue("packet_drop", "0"));
+    final long durationMs = Long.parseLong(cmd.getOptionValue("duration", "30")) * 1000L;
+    if (memberNum < 1 || Server.DEFAULT_PORT + memberNum > 65536) {
+      System.out.println("Invalid number of members:" + memberNum);
+      return;
+    }
+
+    final InMemoryHub hub = new InMemoryHub(threadNum);
+    final HashedWheelTimer timer = SuspicionTimer.newTimer();
+    final List<Server> servers = new ArrayList<>(memberNum);
+    final long heapBefore = usedHeap();
+    // the first server is the introducer. the hub tells servers apart by port only.
+    final InetSocketAddress introducer = new InetSocketAddress("127.0.0.1", Server.DEFAULT_PORT);
+    try {
+      final long startedAt = System.nanoTime();
+      for (int i = 0; i < memberNum; ++i) {
+        final Server.Builder builder = Server.newBuilder()
+            .setPort(Server.DEFAULT_PORT + i)
+            .setDropRate(packetDropRate)
+            .setInMemoryHub(hub)
+            .setTimer(timer)
+            .setExitOnCrash(false); // a CRASH takes down one member, not the whole cluster
+        if (i > 0) {
+          builder.setIntroduerAddress(introducer);
+        }
+        final Server server = builder.build();
+        server.start();
+        servers.add(server);
+      }
+      LOG.log(Level.INFO, "{0} servers joined in {1} ms",
+          new Object[]{memberNum, (System.nanoTime() - startedAt) / 1000000L});
+
+      Thread.sleep(durationMs);
+
+      int converged = 0;
+      for (final Server server : servers) {
+        if (server.getMembershipSize() == memberNum) {
+          ++converged;
+        }
+      }
+      final long heapAfter = usedHeap();
+      LOG.log(Level.INFO, "{0} of {1} servers know every member. Heap per member: {2} bytes",
+          new Object[]{converged, memberNum, (heapAfter - heapBefore) / memberNum});
+    } finally {
+      for (final Server server : servers) {
+        server.close();
+      }
+      timer.stop();
+      hub.shutdownGracefully();
+    }
+  }
+
+  private static long usedHeap() {
+    final Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
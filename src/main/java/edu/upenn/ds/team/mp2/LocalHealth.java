@@ -0,0 +1,41 @@
+package edu.upenn.ds.team.mp2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local health multiplier (Lifeguard). A score that rises when this server itself looks slow,
+ * i.e., its probes time out, it has to refute a suspicion of itself or its rounds start late, and that falls
+ * with every probe answered in time. Probe timeouts are stretched by (score + 1),
+ * so an overloaded server gives its peers more time instead of suspecting them.
+ */
+final class LocalHealth {
+
+  private final int maxScore;
+  private final AtomicInteger score = new AtomicInteger();
+
+  LocalHealth(final int maxScore) {
+    this.maxScore = maxScore;
+  }
+
+  void degrade() {
+    int prev;
+    do {
+      prev = score.get();
+    } while (prev < maxScore && !score.compareAndSet(prev, prev + 1));
+  }
+
+  void improve() {
+    int prev;
+    do {
+      prev = score.get();
+    } while (prev > 0 && !score.compareAndSet(prev, prev - 1));
+  }
+
+  int getScore() {
+    return score.get();
+  }
+
+  long scale(final long timeoutMs) {
+    return timeoutMs * (score.get() + 1);
+  }
+}
@@ -0,0 +1,47 @@
+package edu.upenn.ds.team.mp2;
+
+import io.netty.util.Timeout;
+
+import java.util.Set;
+
+/**
+ * All the state of one member: its status and incarnation in {@link MembershipTable}, its suspicion in
+ * {@link SuspicionTimer} and its pending change in {@link ChangeTable}, so that a transition looks the member up once.
+ * Only the protocol thread writes the status and the incarnation. They are volatile so that other threads read
+ * recent values.
+ */
+final class MemberRecord {
+
+  final long memberId;
+  // ACTIVE, SUSPECTED, or FAILED for a tombstone
+  volatile Status status;
+  volatile long incarnation;
+  // when it became a tombstone, in System.nanoTime()
+  long failedAt;
+  // the tombstone is of a member that has left voluntarily
+  boolean left;
+
+  // suspicion, touched on the protocol thread only. sources is null unless it is suspected.
+  Set<Long> suspicionSources;
+  Timeout suspicionTimeout;
+  long suspectedAt;
+  long minSuspicionMs;
+  long maxSuspicionMs;
+
+  // the change to disseminate, guarded by the change table. change is null if there is none.
+  Entry change;
+  long changeSeq;
+  int transmits;
+  // position in the list of pending changes, or -1
+  int changeSlot = -1;
+
+  MemberRecord(final long memberId, final Status status, final long incarnation) {
+    this.memberId = memberId;
+    this.status = status;
+    this.incarnation = incarnation;
+  }
+
+  boolean isLive() {
+    return status != Status.FAILED;
+  }
+}
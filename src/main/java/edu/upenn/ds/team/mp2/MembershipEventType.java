@@ -0,0 +1,17 @@
+package edu.upenn.ds.team.mp2;
+
+/**
+ * Kinds of membership changes delivered by {@link MembershipEvents}.
+ */
+public enum MembershipEventType {
+  // a member is added to the membership list
+  JOIN,
+  // a member stops answering and is suspected
+  SUSPECT,
+  // a suspected member turns out to be alive
+  ALIVE,
+  // a member is removed as failed
+  FAILED,
+  // a member is removed because it has left voluntarily
+  LEAVE
+}
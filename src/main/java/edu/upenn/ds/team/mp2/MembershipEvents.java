@@ -0,0 +1,162 @@
+package edu.upenn.ds.team.mp2;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stream of the membership changes of a server, kept in a preallocated ring buffer.
+ * Any number of subscribers read it, each at its own pace and in batches. Publishing never blocks or allocates,
+ * so a subscriber that falls more than the capacity behind loses the overwritten events and is told how many.
+ * Each slot has a sequence number that is cleared before the event is written and set after it, and a reader
+ * checks it before and after reading the event, so a half-written event is never delivered.
+ */
+public final class MembershipEvents {
+
+  // the slot is being written
+  private static final long BUSY = -1L;
+  private static final MembershipEventType[] TYPES = MembershipEventType.values();
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicLongArray sequences;
+  private final AtomicIntegerArray types;
+  private final AtomicLongArray members;
+  private final AtomicLongArray incarnations;
+  // the sequence number of the next event
+  private final AtomicLong next = new AtomicLong();
+  // called by the publisher itself, for indexes that must change together with the membership
+  private volatile MembershipListener inlineListener;
+
+  /**
+   * @param capacity a power of two
+   */
+  MembershipEvents(final int capacity) {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+    }
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+    this.sequences = new AtomicLongArray(capacity);
+    this.types = new AtomicIntegerArray(capacity);
+    this.members = new AtomicLongArray(capacity);
+    this.incarnations = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; ++i) {
+      sequences.set(i, BUSY);
+    }
+  }
+
+  void publish(final MembershipEventType type, final long memberId, final long incarnation) {
+    final long seq = next.getAndIncrement();
+    final int idx = (int) seq & mask;
+    sequences.set(idx, BUSY);
+    types.set(idx, type.ordinal());
+    members.set(idx, memberId);
+    incarnations.set(idx, incarnation);
+    sequences.set(idx, seq);
+    final MembershipListener listener = inlineListener;
+    if (listener != null) {
+      listener.onEvent(type, memberId, incarnation);
+    }
+  }
+
+  /**
+   * Sets a listener called on the publishing thread for every event, before it returns. It must be quick.
+   */
+  void setInlineListener(final MembershipListener inlineListener) {
+    this.inlineListener = inlineListener;
+  }
+
+  /**
+   * @return the number of events published so far
+   */
+  public long getPublishedCount() {
+    return next.get();
+  }
+
+  /**
+   * Starts reading the events published from now on. Subscribe before the server starts to see every member.
+   */
+  public Subscription subscribe() {
+    return new Subscription(next.get());
+  }
+
+  /**
+   * Read position of one consumer. {@link #poll} must be called by one thread at a time.
+   * The statistics may be read from any thread.
+   */
+  public final class Subscription {
+    private volatile long cursor;
+    private volatile long deliveredCount = 0;
+    private volatile long lostCount = 0;
+
+    private Subscription(final long cursor) {
+      this.cursor = cursor;
+    }
+
+    /**
+     * Delivers up to maxEvents events in order to the listener.
+     * @return the number of events delivered. 0 if there is nothing new.
+     */
+    public int poll(final MembershipListener listener, final int maxEvents) {
+      long seq = cursor;
+      long lost = 0;
+      int count = 0;
+      while (count < maxEvents) {
+        final long end = next.get();
+        if (seq >= end) {
+          break;
+        }
+        if (end - seq > capacity) {
+          // overwritten already
+          lost += end - capacity - seq;
+          seq = end - capacity;
+        }
+        final int idx = (int) seq & mask;
+        if (sequences.get(idx) != seq) {
+          if (sequences.get(idx) > seq) {
+            ++lost; // overwritten by a later lap
+            ++seq;
+            continue;
+          }
+          break; // claimed by a publisher but not written yet
+        }
+        final int type = types.get(idx);
+        final long memberId = members.get(idx);
+        final long incarnation = incarnations.get(idx);
+        if (sequences.get(idx) != seq) {
+          continue; // overwritten while reading. found out above on the next pass.
+        }
+        listener.onEvent(TYPES[type], memberId, incarnation);
+        ++count;
+        ++seq;
+      }
+      cursor = seq;
+      if (count > 0) {
+        deliveredCount += count;
+      }
+      if (lost > 0) {
+        lostCount += lost;
+      }
+      return count;
+    }
+
+    /**
+     * @return the number of events published and not polled yet, i.e., how far this consumer is behind
+     */
+    public long getLag() {
+      return Math.max(0L, next.get() - cursor);
+    }
+
+    public long getDeliveredCount() {
+      return deliveredCount;
+    }
+
+    /**
+     * @return the number of events overwritten before this consumer polled them
+     */
+    public long getLostCount() {
+      return lostCount;
+    }
+  }
+}
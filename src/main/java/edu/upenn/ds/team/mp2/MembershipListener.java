@@ -0,0 +1,12 @@
+package edu.upenn.ds.team.mp2;
+
+/**
+ * Receives membership changes from {@link MembershipEvents.Subscription#poll}.
+ * Events come as primitives, so delivery does not allocate.
+ */
+public interface MembershipListener {
+  /**
+   * @param memberId the member id packed as in {@link Utils#toMemberId}
+   */
+  void onEvent(MembershipEventType type, long memberId, long incarnation);
+}
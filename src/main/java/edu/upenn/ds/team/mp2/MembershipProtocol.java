@@ -0,0 +1,498 @@
+package edu.upenn.ds.team.mp2;
+
+import edu.upenn.ds.team.service.Transport;
+import io.netty.channel.EventLoop;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static edu.upenn.ds.team.mp2.Utils.getAddressFromMemberId;
+import static edu.upenn.ds.team.mp2.Utils.memberIdToString;
+
+/**
+ * Protocol logic of a member, independent of the transport.
+ * Messages are handled on the event loop of the transport, and replies are sent through it.
+ * That event loop is the only writer of the membership table. Messages received on other threads are queued to it.
+ */
+/*
+MembershipProtocol handles the messages from other servers. There are eight kinds of messages
+1. ping: s sends back ACK on which Change Table is piggybacked to the PING sender
+2. ACK: s updates its MT,CT and ST with the received table (another’s CT) in ACK
+  1) mergeActive();if active originally,then do nothing,if is suspected before,modify membershipTable 
+    and changeTable as Active. Remove it from suspectTable
+  2) mergeSuspected() : modify it in membershipTable suspectTable,and changeTable
+  3) mergeFailed() : remove from its membershipTable suspectTable,and set changeTable as failed(so it can
+     response ack to other servers to tell them some serve is failed)
+  Also, we should set the server who send me ACK as Active in MT and CT.
+  And remove its ID from pendingProbes,so in server.java, I can check whether I communicate with that server 
+  successfully,else set it suspected.
+3. Join: If a server s receives JOIN, s takes a role of the introducer. s will update MT as active,
+  Then it sends its Membership Table back in JOIN_ACK chunks and updates the new node’s status as JOIN in CT.
+  If the JOIN lists missing chunks, only those chunks are sent again.
+4. JOIN_ACK: s merges each chunk of the MT in the message as it arrives, until all chunks are received
+5. Terminate: remove itself from membershipTable,and put changetable as failed,note that after remove 
+  itself from MT,even it receive other server that indicates it is active,it will not work anymore. which
+  means mergeActive() and other methods will not work after Terminate
+  Also, if terminate,which means leaves voluntarily. so it should tell others he leaves. so loop for another 3 times
+6. Crash : exit(1) immediately.
+7. PING_REQ: s pings the target on behalf of the sender. When the target ACKs, s sends an INDIRECT_ACK
+  back to the sender.
+8. INDIRECT_ACK: the target has answered someone else, so s removes it from pendingProbes and does not
+  suspect it.
+9. SYNC: s compares the digest of the sender's membership table with its own, and sends back its entries in
+  the buckets that differ, with its own digest, in SYNC_ACK chunks.
+10. SYNC_ACK: s merges the entries like those of an ACK, adding the live members it has missed. If the message
+  carries a digest, s pushes its entries in the buckets that still differ back to the sender.
+*/
+final class MembershipProtocol {
+
+  private static final Logger LOG = Logger.getLogger(MembershipProtocol.class.getName());
+
+  private final long memberId;
+  private final MembershipTable membershipTable;
+  private final ChangeTable changeTable;
+  private final SuspicionTimer suspectTable;
+  private final ConcurrentHashMap<Long, Long> peerSeqTable;
+  private final BlockingQueue<Long> receivedIds;
+  private final ConcurrentHashMap<Long, Long> pendingProbes;
+  private final ProbeList probeList;
+  private final JoinAckSender joinAckSender;
+  private final JoinAckAssembler joinAckAssembler;
+  private final IndirectProbeTable indirectProbes;
+  private final RttEstimator rttTable;
+  private final LocalHealth localHealth;
+  private final ProtocolMetrics metrics;
+  private final MembershipEvents events;
+  private final AntiEntropy antiEntropy;
+  private Transport transport;
+  // run on CRASH. null to exit the process.
+  private volatile Runnable crashHandler;
+  // set on TERMINATE. the server stops once the FAILED change has been sent in a few ACKs.
+  private volatile boolean stopFlag = false;
+  private volatile boolean stopped = false;
+  /*
+AtomicInteger，一个提供原子操作的Integer的类。在Java语言中，++i和i++操作并不是线程安全的，在使用的时候，不可避免的会用
+到synchronized关键字。而AtomicInteger则通过一种线程安全的加减操作接口。
+那么为什么不使用记数器自加呢，例如count++这样的，因为这种计数是线程不安全的，高并发访问时统计会有误
+  */
+  private final AtomicInteger countForStop = new AtomicInteger(3);
+
+  MembershipProtocol(final long memberId,
+                     final MembershipTable membershipTable,
+                     final ChangeTable changeTable,
+                     final SuspicionTimer suspectTable,
+                     final ConcurrentHashMap<Long, Long> peerSeqTable,
+                     final BlockingQueue<Long> receivedIds,
+                     final ConcurrentHashMap<Long, Long> pendingProbes,
+                     final ProbeList probeList,
+                     final JoinAckSender joinAckSender,
+                     final JoinAckAssembler joinAckAssembler,
+                     final IndirectProbeTable indirectProbes,
+                     final RttEstimator rttTable,
+                     final LocalHealth localHealth,
+                     final ProtocolMetrics metrics,
+                     final MembershipEvents events,
+                     final AntiEntropy antiEntropy) {
+    this.memberId = memberId;
+    this.membershipTable = membershipTable;
+    this.changeTable = changeTable;
+    this.suspectTable = suspectTable;
+    this.peerSeqTable = peerSeqTable;
+    this.receivedIds = receivedIds;
+    this.pendingProbes = pendingProbes;
+    this.probeList = probeList;
+    this.joinAckSender = joinAckSender;
+    this.joinAckAssembler = joinAckAssembler;
+    this.indirectProbes = indirectProbes;
+    this.rttTable = rttTable;
+    this.localHealth = localHealth;
+    this.metrics = metrics;
+    this.events = events;
+    this.antiEntropy = antiEntropy;
+  }
+
+  void setTransport(final Transport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * @param crashHandler run on CRASH instead of exiting the process, e.g., when other servers run in it
+   */
+  void setCrashHandler(final Runnable crashHandler) {
+    this.crashHandler = crashHandler;
+  }
+
+  /**
+   * @return the protocol thread, which alone updates the membership table
+   */
+  EventLoop getEventLoop() {
+    return transport.getEventLoop();
+  }
+
+  /**
+   * @return true once the server has terminated and disseminated its leave
+   */
+  boolean isStopped() {
+    return stopped;
+  }
+
+  // the entry carries nothing newer than what we already know
+  private boolean isKnown(final Entry entry) {
+    final MemberRecord record = membershipTable.get(entry.getMember());
+    if (record == null) {
+      return entry.getStatus() != Status.JOIN;
+    }
+    final Status status = record.status;
+    final long incarnation = record.incarnation;
+    if (status == Status.FAILED || incarnation > entry.getIncarnation()) {
+      return true; // a tombstone, or stale information
+    }
+    if (status == Status.SUSPECTED && entry.getStatus() == Status.SUSPECTED) {
+      return false; // may confirm the suspicion
+    }
+    return incarnation == entry.getIncarnation() && (status == entry.getStatus() || entry.getStatus() == Status.JOIN);
+  }
+
+  //if the sender itself tells us it is alive, clear the suspicion regardless of the incarnation.
+  private void mergeAlive(final long targetId) {
+    final MemberRecord record = membershipTable.get(targetId);
+    if (record != null && record.status == Status.SUSPECTED) {
+      LOG.log(Level.INFO, "Update Server {0} Status from SUSPECTED to ACTIVE.", memberIdToString(targetId));
+      membershipTable.update(record, Status.ACTIVE, record.incarnation);
+      changeTable.put(record, Status.ACTIVE, record.incarnation);
+      if (suspectTable.refute(record)) {
+        metrics.suspicionsRefuted.increment();
+      }
+      events.publish(MembershipEventType.ALIVE, targetId, record.incarnation);
+    }
+  }
+
+  //if active originally,then do nothing,if is suspected before with an older incarnation,
+  //modify membershipTable suspectTable,and changeTable as Active
+  private void mergeActive(final long targetId, final long incarnation) {
+    final MemberRecord record = membershipTable.get(targetId);
+    if (record == null || !record.isLive() || incarnation <= record.incarnation) {
+      // ACTIVE only refutes a suspicion with a newer incarnation
+      return;
+    }
+    if (membershipTable.update(record, Status.ACTIVE, incarnation) == Status.SUSPECTED) {
+      LOG.log(Level.INFO, "Update Server {0} Status from SUSPECTED to ACTIVE.", memberIdToString(targetId));
+      changeTable.put(record, Status.ACTIVE, incarnation);
+      if (suspectTable.refute(record)) {
+        metrics.suspicionsRefuted.increment();
+      }
+      events.publish(MembershipEventType.ALIVE, targetId, incarnation);
+    }
+  }
+  //modify it in membershipTable suspectTable,and changeTable
+  private void mergeSuspected(final long targetId, final long incarnation, final long sourceId) {
+    final MemberRecord record = membershipTable.get(targetId);
+    if (record == null || !record.isLive()) {
+      return;
+    }
+    //if targeId = id, then it is wrong because I know myself is active.
+    //refute it with a newer incarnation
+    if (targetId == memberId) {
+      if (incarnation >= record.incarnation) {
+        final long newIncarnation = incarnation + 1;
+        membershipTable.update(record, Status.ACTIVE, newIncarnation);
+        LOG.log(Level.INFO, "Refute the suspicion of myself with incarnation {0}", newIncarnation);
+        changeTable.put(record, Status.ACTIVE, newIncarnation);
+        metrics.selfRefutations.increment();
+        // others could not reach us in time. we may be the slow one.
+        localHealth.degrade();
+      }
+      return;
+    }
+
+    if (incarnation < record.incarnation) {
+      return; // suspicion of an older incarnation
+    }
+    if (membershipTable.update(record, Status.SUSPECTED, incarnation) == Status.ACTIVE) {
+      LOG.log(Level.INFO, "Update Server {0} Status from ACTIVE to SUSPECTED.", memberIdToString(targetId));
+      changeTable.put(record, Status.SUSPECTED, incarnation, sourceId);
+      suspectTable.suspect(record, sourceId);
+      events.publish(MembershipEventType.SUSPECT, targetId, incarnation);
+
+    } else if (sourceId != 0L && suspectTable.confirm(record, sourceId)) {
+      // another member suspects it independently. pass the confirmation on.
+      changeTable.put(record, Status.SUSPECTED, incarnation, sourceId);
+      metrics.suspicionConfirmations.increment();
+    }
+  }
+  //turn it into a tombstone in membershipTable, remove it from suspectTable,and set changeTable as failed
+  //left is true for a LEFT entry, i.e., the member has left voluntarily
+  private void mergeFailed(final long targetId, final long incarnation, final boolean left) {
+    if (targetId == memberId) {
+      // false positive
+      LOG.log(Level.INFO, "False positive for {0}", memberIdToString(targetId));
+      return;
+    }
+
+    final MemberRecord record = membershipTable.get(targetId);
+    if (record != null && membershipTable.markFailed(record, incarnation, left)) {
+      probeList.remove(targetId);
+      suspectTable.refute(record);
+      peerSeqTable.remove(targetId);
+      rttTable.remove(targetId);
+      // passed on as LEFT, so that every member publishes the same event for the departure
+      changeTable.put(record, left ? Status.LEFT : Status.FAILED, incarnation);
+      LOG.log(Level.INFO, "Server {0} is considered {1}.",
+          new Object[]{memberIdToString(targetId), left ? "LEFT" : "FAILED"});
+      events.publish(left ? MembershipEventType.LEAVE : MembershipEventType.FAILED, targetId, incarnation);
+    }
+  }
+  //put the serve into membershipTable
+  private void mergeJoin(final long targetId, final long incarnation) {
+    if (membershipTable.isExpired(targetId, incarnation)) {
+      // a member we have already forgotten as failed, from a peer that has not heard of the failure
+      LOG.log(Level.FINE, "Ignore the JOIN of expired Server {0}", memberIdToString(targetId));
+      return;
+    }
+    if (membershipTable.add(targetId, incarnation) != null) {
+      probeList.add(targetId);
+      LOG.log(Level.INFO, "Sever {0} joined. Set it ACTIVE", memberIdToString(targetId));
+      events.publish(MembershipEventType.JOIN, targetId, incarnation);
+    }
+  }
+
+  // an entry of an ACK or a SYNC_ACK that carries something new
+  private void merge(final Entry recEntry) {
+    final long targetId = recEntry.getMember();
+    final Status targetNewStatus = recEntry.getStatus();
+    final long incarnation = recEntry.getIncarnation();
+    //after terminated, s has already remove itself from membership table, so following operation
+    //will not work
+    if (targetNewStatus == Status.ACTIVE) { // Active
+      mergeActive(targetId, incarnation);
+    } else if (targetNewStatus == Status.SUSPECTED) { //Suspected
+      mergeSuspected(targetId, incarnation, recEntry.getSource());
+    } else if (targetNewStatus == Status.FAILED || targetNewStatus == Status.LEFT){ //Failed
+      mergeFailed(targetId, incarnation, targetNewStatus == Status.LEFT);
+    } else if (targetNewStatus == Status.JOIN) {
+      mergeJoin(targetId, incarnation);
+    }
+  }
+
+  private void send(final long targetId, final List<Message> messages) {
+    final InetSocketAddress address = getAddressFromMemberId(targetId);
+    for (final Message message : messages) {
+      transport.sendAsync(address, message);
+    }
+  }
+
+  /**
+   * Handles the message on the protocol thread, queueing it there if called on another thread,
+   * e.g., on another event loop of a SO_REUSEPORT transport.
+   */
+  void dispatch(final Message msg) {
+    final EventLoop eventLoop = transport.getEventLoop();
+    if (eventLoop.inEventLoop()) {
+      handle(msg);
+      return;
+    }
+    eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        handle(msg);
+      }
+    });
+  }
+
+  // on the protocol thread only
+  void handle(final Message msg) {
+    //if terminate,then remove itself from membershipTable,and put changetable as failed
+    if (msg.getType() == Type.TERMINATE) {
+      LOG.log(Level.INFO, "Receives a TERMINATE message. Marks itself as failed and waits until it disseminates info");
+      final MemberRecord self = membershipTable.get(memberId);
+      if (self == null || !self.isLive()) {
+        return; // terminated before
+      }
+      final long incarnation = self.incarnation;
+      membershipTable.markFailed(self, incarnation, true);
+      changeTable.put(self, Status.LEFT, incarnation);
+      events.publish(MembershipEventType.LEAVE, memberId, incarnation);
+      stopFlag = true;
+      return;
+
+    } else if (msg.getType() == Type.CRASH) {
+      LOG.log(Level.INFO, "Receives a CRASH message");
+      if (crashHandler != null) {
+        crashHandler.run();
+        return;
+      }
+      // Just crash
+      System.exit(1);
+    }
+
+    final long senderId = msg.getSender();
+    if (LOG.isLoggable(Level.FINEST)) {
+      LOG.log(Level.FINEST, "Receive a {0} message from {1}", new Object[]{msg.getType(), memberIdToString(senderId)});
+    }
+   //When it receives PING , s sends back ACK on which Change Table is piggybacked to the PING sender.
+    //Only the changes after the latest one the sender has received from us are sent.
+    if (msg.getType() == Type.PING) {
+      // the most important changes that fit into the ACK. the sequence tells the pinger where to resume.
+      final List<Entry> changes = new ArrayList<>();
+      final long ackSeq = changeTable.select(msg.getSeq(), changes);
+      // send reply
+      final Message response = Message.newBuilder()
+          .setSender(memberId)
+          .setType(Type.ACK)
+          .setTable(changes)
+          .setSeq(ackSeq)
+          .build();
+      transport.sendAsync(getAddressFromMemberId(senderId), response);
+    } 
+    //The sender has not received an ACK from the target. Ping the target for it, the ACK is relayed below.
+    else if (msg.getType() == Type.PING_REQ) {
+      final long targetId = msg.getTarget();
+      if (targetId == memberId || !membershipTable.isLive(targetId)) {
+        return;
+      }
+      indirectProbes.addRequester(targetId, senderId);
+      final Long seq = peerSeqTable.get(targetId);
+      final Message ping = Message.newBuilder()
+          .setType(Type.PING)
+          .setSender(memberId)
+          .setSeq(seq == null ? 0L : seq)
+          .build();
+      transport.sendAsync(getAddressFromMemberId(targetId), ping);
+    }
+    //Someone else has received an ACK from the target on our behalf
+    else if (msg.getType() == Type.INDIRECT_ACK) {
+      pendingProbes.remove(msg.getTarget());
+    }
+//If a server s receives JOIN, s takes a role of the introducer. It sends its Membership Table
+    //back in a JOIN_ACK and updates the new node’s status as JOIN in CT.   
+    else if (msg.getType() == Type.JOIN){
+      final InetSocketAddress joinerAddress = getAddressFromMemberId(senderId);
+      //the joiner asks again for the chunks it has missed
+      final List<Message> chunks = msg.getMissingChunks() == null ? null
+          : joinAckSender.getChunks(senderId, msg.getSnapshot());
+      if (chunks != null) {
+        LOG.log(Level.FINE, "Resend {0} JOIN_ACK chunks to {1}",
+            new Object[]{msg.getMissingChunks().size(), memberIdToString(senderId)});
+        for (final int chunk : msg.getMissingChunks()) {
+          if (chunk >= 0 && chunk < chunks.size()) {
+            transport.sendAsync(joinerAddress, chunks.get(chunk));
+          }
+        }
+        return;
+      }
+
+      //the full id with the hostname is sent only in JOIN
+      LOG.log(Level.INFO, "Server {0} joins the network. Updates its status to ACTIVE", msg.getSenderId());
+      //add to membershipTable. it may come back from a tombstone with a new view of the group.
+      MemberRecord record = membershipTable.get(senderId);
+      final Status prevStatus = record == null ? null : membershipTable.update(record, Status.ACTIVE, 0L);
+      if (record == null) {
+        record = membershipTable.add(senderId, 0L);
+      }
+      probeList.add(senderId);
+      if (prevStatus == null || prevStatus == Status.FAILED) {
+        events.publish(MembershipEventType.JOIN, senderId, 0L);
+      } else if (prevStatus == Status.SUSPECTED) {
+        events.publish(MembershipEventType.ALIVE, senderId, 0L);
+      }
+      LOG.log(Level.INFO, "Add JOIN into the change table for {0}", memberIdToString(senderId));
+      changeTable.put(record, Status.JOIN, 0L);
+      //Send back membershipTable, split into chunks that fit into a datagram each
+      for (final Message response : joinAckSender.split(senderId, membershipTable.toEntries())) {
+        transport.sendAsync(joinerAddress, response);
+      }
+
+    } 
+//On receiving JOIN_ACK, s initializes its MT in the message and sets its status in CT as JOIN .
+    else if (msg.getType() == Type.JOIN_ACK) {
+      // a chunk received before, or one from another introducer. a new snapshot restarts the assembly.
+      if (!joinAckAssembler.accept(msg)) {
+        return;
+      }
+      // Put all the elements in the received chunk of the membership table into me.
+      // the introducer's view may be older than ours, e.g., from the snapshot or from gossip between chunks,
+      // so the entries are merged like those of an ACK rather than written over ours.
+      for (final Entry entry : msg.getTable()) {
+        if (membershipTable.get(entry.getMember()) == null) {
+          // a suspicion of a new member is merged next, which starts our own timer
+          mergeJoin(entry.getMember(), entry.getIncarnation());
+        }
+        if (!isKnown(entry)) {
+          merge(entry);
+        }
+      }
+      if (joinAckAssembler.isComplete()) {
+        receivedIds.offer(senderId);
+      }
+
+    }
+//The sender compares views with us. Send back our entries in the buckets that differ.
+    else if (msg.getType() == Type.SYNC) {
+      send(senderId, antiEntropy.answer(msg));
+    }
+//Entries of the sender in the buckets that differ. Members we have never heard of are added first, since the
+    //JOIN change of them has passed us by. Then the entries are merged like those of an ACK.
+    else if (msg.getType() == Type.SYNC_ACK) {
+      for (final Entry recEntry : msg.getTable()) {
+        if (recEntry.getStatus() != Status.FAILED && recEntry.getStatus() != Status.LEFT
+            && membershipTable.get(recEntry.getMember()) == null) {
+          mergeJoin(recEntry.getMember(), recEntry.getIncarnation());
+        }
+        if (!isKnown(recEntry)) {
+          merge(recEntry);
+        }
+      }
+      send(senderId, antiEntropy.pushBack(msg));
+    }
+//On receiving ACK , s updates its Membership Table with the received table (another’s CT) in ACK. For 
+//each entry <id, status> in the received table,
+    else if (msg.getType() == Type.ACK){
+      metrics.acksReceived.increment();
+      // merge table
+      for (final Entry recEntry: msg.getTable()){
+        if (!isKnown(recEntry)) {
+          merge(recEntry);
+        }
+      }
+      // remember up to which change of the sender we have received
+      final Long prevSeq = peerSeqTable.get(senderId);
+      if (membershipTable.isLive(senderId) && (prevSeq == null || prevSeq < msg.getSeq())) {
+        peerSeqTable.put(senderId, msg.getSeq());
+      }
+      // update the status of the sender
+      mergeAlive(senderId);
+      final Long sentAt = pendingProbes.remove(senderId);
+      if (sentAt != null) {
+        final long rttUs = (System.nanoTime() - sentAt) / 1000L;
+        metrics.probeRttUs.record(rttUs);
+        rttTable.record(senderId, rttUs);
+        localHealth.improve();
+      }
+      // relay the ACK to the members that asked us to ping the sender
+      final Set<Long> requesters = indirectProbes.takeRequesters(senderId);
+      if (requesters != null) {
+        final Message indirectAck = Message.newBuilder()
+            .setType(Type.INDIRECT_ACK)
+            .setSender(memberId)
+            .setTarget(senderId)
+            .build();
+        for (final long requesterId : requesters) {
+          transport.sendAsync(getAddressFromMemberId(requesterId), indirectAck);
+        }
+      }
+      //decrementAndGet 自减
+      if (stopFlag && countForStop.decrementAndGet() == 0) {
+        LOG.log(Level.INFO, "Dissemination for termination finished. Stopping a server");
+        stopped = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package edu.upenn.ds.team.mp2;
+
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Membership table persisted in a memory-mapped file, so that a restarted server resumes probing the members it
+ * knew and can join through any of them.
+ * Layout: magic (4 bytes) | count (4 bytes) | count * (member id (8 bytes) | incarnation (8 bytes)) | CRC32 (4 bytes).
+ * A snapshot is written to a temporary file and renamed over the previous one, so a crash leaves either of them
+ * intact. A torn or corrupted file fails the CRC and is ignored.
+ * The generation of the server's member id is kept next to it, in [snapshot].generation, and incremented on every
+ * start so that a restarted server never reuses the id of its previous run.
+ */
+final class MembershipSnapshot {
+
+  private static final Logger LOG = Logger.getLogger(MembershipSnapshot.class.getName());
+
+  private static final int MAGIC = 0x474D5331; // "GMS1"
+  private static final int HEADER_BYTES = 8;
+  private static final int ENTRY_BYTES = 16;
+  private static final int TRAILER_BYTES = 4;
+
+  private final Path path;
+  private final Path tempPath;
+  private final Path generationPath;
+
+  MembershipSnapshot(final Path path) {
+    this.path = path;
+    this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+    this.generationPath = path.resolveSibling(path.getFileName() + ".generation");
+  }
+
+  /**
+   * Increments the persisted generation. It is durable before it is returned, so a crash right after the start
+   * does not hand the same generation to the next run.
+   * @return the generation of this run, the low 16 bits of a counter starting at 1
+   */
+  int nextGeneration() throws IOException {
+    int generation = 0;
+    if (Files.isRegularFile(generationPath)) {
+      final byte[] bytes = Files.readAllBytes(generationPath);
+      if (bytes.length == 4) {
+        generation = ByteBuffer.wrap(bytes).getInt();
+      } else {
+        LOG.log(Level.WARNING, "Ignore the corrupted generation {0}", generationPath);
+      }
+    }
+    ++generation;
+    final Path tempGenerationPath = generationPath.resolveSibling(generationPath.getFileName() + ".tmp");
+    try (final FileChannel channel = FileChannel.open(tempGenerationPath, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      final ByteBuffer buf = ByteBuffer.allocate(4).putInt(0, generation);
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+      channel.force(true);
+    }
+    Files.move(tempGenerationPath, generationPath, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    syncDirectory();
+    return generation & 0xFFFF;
+  }
+
+  /**
+   * Writes the members that are not FAILED, except the given one.
+   * @param selfId the server writing it. Its next run has another id.
+   * @return the number of members written
+   */
+  int save(final MembershipTable membershipTable, final long selfId) throws IOException {
+    // the table keeps changing, so it is copied first to size the file
+    final List<long[]> members = new ArrayList<>(membershipTable.size());
+    for (final MemberRecord record : membershipTable.records()) {
+      if (record.memberId == selfId || !record.isLive()) {
+        continue;
+      }
+      members.add(new long[]{record.memberId, record.incarnation});
+    }
+
+    final int size = HEADER_BYTES + members.size() * ENTRY_BYTES + TRAILER_BYTES;
+    try (final FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      try {
+        buf.putInt(MAGIC);
+        buf.putInt(members.size());
+        for (final long[] member : members) {
+          buf.putLong(member[0]);
+          buf.putLong(member[1]);
+        }
+        buf.putInt(crc(buf, size - TRAILER_BYTES));
+        buf.force();
+      } finally {
+        unmap(buf);
+      }
+    }
+    Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    syncDirectory();
+    return members.size();
+  }
+
+  /**
+   * @return the members of the snapshot with their incarnations, or an empty list if there is no valid snapshot
+   */
+  List<Entry> load() {
+    if (!Files.isRegularFile(path)) {
+      return Collections.emptyList();
+    }
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (size < HEADER_BYTES + TRAILER_BYTES || size > Integer.MAX_VALUE) {
+        LOG.log(Level.WARNING, "Ignore the snapshot {0} of invalid size {1}", new Object[]{path, size});
+        return Collections.emptyList();
+      }
+      final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      try {
+        final int count = buf.getInt(4);
+        if (buf.getInt(0) != MAGIC || count < 0
+            || (long) HEADER_BYTES + (long) count * ENTRY_BYTES + TRAILER_BYTES != size
+            || buf.getInt((int) size - TRAILER_BYTES) != crc(buf, (int) size - TRAILER_BYTES)) {
+          LOG.log(Level.WARNING, "Ignore the corrupted snapshot {0}", path);
+          return Collections.emptyList();
+        }
+        final List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+          final int offset = HEADER_BYTES + i * ENTRY_BYTES;
+          entries.add(new Entry(buf.getLong(offset), Status.ACTIVE, buf.getLong(offset + 8), 0L));
+        }
+        return entries;
+      } finally {
+        unmap(buf);
+      }
+    } catch (final IOException e) {
+      LOG.log(Level.WARNING, "Failed to read the snapshot " + path, e);
+      return Collections.emptyList();
+    }
+  }
+
+  private static int crc(final ByteBuffer buf, final int length) {
+    final ByteBuffer content = buf.duplicate();
+    content.clear();
+    content.limit(length);
+    final CRC32 crc = new CRC32();
+    crc.update(content);
+    return (int) crc.getValue();
+  }
+
+  // releases the mapping now rather than when the buffer is collected, which keeps the old file open on some
+  // platforms and blocks the rename over it. the buffer must not be used afterwards.
+  private static void unmap(final MappedByteBuffer buf) {
+    PlatformDependent.freeDirectBuffer(buf);
+  }
+
+  // makes the rename itself durable. Not every platform can open a directory, so it is best effort.
+  private void syncDirectory() {
+    final Path directory = path.toAbsolutePath().getParent();
+    if (directory == null) {
+      return;
+    }
+    try (final FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (final IOException e) {
+      LOG.log(Level.FINE, "Failed to sync the directory " + directory, e);
+    }
+  }
+}
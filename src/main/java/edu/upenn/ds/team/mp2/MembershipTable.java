@@ -0,0 +1,253 @@
+package edu.upenn.ds.team.mp2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Membership table (MT): one {@link MemberRecord} per member, holding its status and incarnation together,
+ * so that a merge takes one lookup and reads a consistent pair.
+ * It has a single writer, the protocol event loop, so read-modify-write sequences need neither locks nor CAS.
+ * Other threads may read it at any time.
+ * A failed member is kept as a FAILED tombstone for a while, so that older gossip about it does not bring it back.
+ * Once the tombstone expires, the member's last incarnation is still remembered among the latest EXPIRED_CAPACITY
+ * ones, so that a peer whose tombstone has already gone does not bring it back through anti-entropy either.
+ * The live members are also summarized in DIGEST_BUCKETS hashes for anti-entropy. Each bucket XORs a hash of
+ * (member, incarnation) of its members, so a change updates it in O(1) and two views agree on a bucket
+ * if they hold the same members with the same incarnations in it.
+ */
+final class MembershipTable {
+
+  // a power of two up to 64, so that a set of buckets fits into a long
+  static final int DIGEST_BUCKETS = 64;
+  // expired tombstones remembered
+  private static final int EXPIRED_CAPACITY = 4096;
+
+  private final ConcurrentHashMap<Long, MemberRecord> records = new ConcurrentHashMap<>();
+  // tombstones in the order they were made. writer only.
+  private final ArrayDeque<MemberRecord> tombstones = new ArrayDeque<>();
+  private final long tombstoneNanos;
+  // the last incarnation of the members whose tombstones have expired, oldest first. writer only.
+  private final LinkedHashMap<Long, Long> expired = new LinkedHashMap<Long, Long>() {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Long, Long> eldest) {
+      return size() > EXPIRED_CAPACITY;
+    }
+  };
+  // the number of ACTIVE and SUSPECTED members
+  private volatile int liveCount = 0;
+  // writer only
+  private final long[] digests = new long[DIGEST_BUCKETS];
+
+  MembershipTable(final long tombstoneMs) {
+    this.tombstoneNanos = TimeUnit.MILLISECONDS.toNanos(tombstoneMs);
+  }
+
+  MemberRecord get(final long memberId) {
+    return records.get(memberId);
+  }
+
+  /**
+   * @return the status of the member, FAILED for a tombstone, or null if unknown
+   */
+  Status getStatus(final long memberId) {
+    final MemberRecord record = records.get(memberId);
+    return record == null ? null : record.status;
+  }
+
+  boolean isLive(final long memberId) {
+    final MemberRecord record = records.get(memberId);
+    return record != null && record.isLive();
+  }
+
+  long getIncarnation(final long memberId) {
+    final MemberRecord record = records.get(memberId);
+    return record == null ? 0L : record.incarnation;
+  }
+
+  /**
+   * Writer only.
+   * @return true if the tombstone of the member has expired and the incarnation is not newer than its last one
+   */
+  boolean isExpired(final long memberId, final long incarnation) {
+    final Long lastIncarnation = expired.get(memberId);
+    return lastIncarnation != null && incarnation <= lastIncarnation;
+  }
+
+  /**
+   * @return the number of live members
+   */
+  int size() {
+    return liveCount;
+  }
+
+  /**
+   * @return all the records including tombstones, as a live view
+   */
+  Collection<MemberRecord> records() {
+    return records.values();
+  }
+
+  /**
+   * @return the live members as entries, e.g., for a JOIN_ACK
+   */
+  List<Entry> toEntries() {
+    final List<Entry> entries = new ArrayList<>(liveCount);
+    for (final MemberRecord record : records.values()) {
+      final Status status = record.status;
+      if (status != Status.FAILED) {
+        entries.add(new Entry(record.memberId, status, record.incarnation, 0L));
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @return the entries of the members in the given buckets, tombstones included
+   */
+  List<Entry> toEntries(final long buckets) {
+    final List<Entry> entries = new ArrayList<>();
+    for (final MemberRecord record : records.values()) {
+      if ((buckets & 1L << bucketOf(record.memberId)) != 0) {
+        final Status status = record.status;
+        entries.add(new Entry(record.memberId, status == Status.FAILED && record.left ? Status.LEFT : status,
+            record.incarnation, 0L));
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @return the hash of each bucket. Writer only, like the updates of the hashes.
+   */
+  List<Long> getDigest() {
+    final List<Long> digest = new ArrayList<>(DIGEST_BUCKETS);
+    for (final long hash : digests) {
+      digest.add(hash);
+    }
+    return digest;
+  }
+
+  /**
+   * Compares another member's digest with ours. Writer only.
+   * @return the buckets that differ as bits, all of them if the digest does not match our layout
+   */
+  long diff(final List<Long> digest) {
+    if (digest == null || digest.size() != DIGEST_BUCKETS) {
+      return -1L >>> (64 - DIGEST_BUCKETS);
+    }
+    long buckets = 0L;
+    for (int i = 0; i < DIGEST_BUCKETS; ++i) {
+      if (digest.get(i) != digests[i]) {
+        buckets |= 1L << i;
+      }
+    }
+    return buckets;
+  }
+
+  /**
+   * Sets the status and the incarnation of a member, adding it or bringing a tombstone back if needed.
+   * Writer only.
+   * @return the previous status, or null if it was unknown
+   */
+  Status put(final long memberId, final Status status, final long incarnation) {
+    final MemberRecord record = records.get(memberId);
+    if (record == null) {
+      add(memberId, status, incarnation);
+      return null;
+    }
+    return update(record, status, incarnation);
+  }
+
+  /**
+   * Same as {@link #put} for a record already looked up. Writer only.
+   * @return the previous status
+   */
+  Status update(final MemberRecord record, final Status status, final long incarnation) {
+    final long memberId = record.memberId;
+    final Status newStatus = status == Status.JOIN ? Status.ACTIVE : status;
+    final Status prevStatus = record.status;
+    if (record.isLive()) {
+      digests[bucketOf(memberId)] ^= hashOf(memberId, record.incarnation);
+    }
+    record.incarnation = incarnation;
+    record.status = newStatus;
+    if (record.isLive()) {
+      digests[bucketOf(memberId)] ^= hashOf(memberId, incarnation);
+      if (prevStatus == Status.FAILED) {
+        ++liveCount;
+      }
+    }
+    return prevStatus;
+  }
+
+  /**
+   * Adds an ACTIVE member unless it is known, including as a tombstone. Writer only.
+   * @return the new record, or null if it is known
+   */
+  MemberRecord add(final long memberId, final long incarnation) {
+    return records.containsKey(memberId) ? null : add(memberId, Status.ACTIVE, incarnation);
+  }
+
+  private MemberRecord add(final long memberId, final Status status, final long incarnation) {
+    final MemberRecord record = new MemberRecord(memberId, status == Status.JOIN ? Status.ACTIVE : status, incarnation);
+    records.put(memberId, record);
+    expired.remove(memberId);
+    if (record.isLive()) {
+      ++liveCount;
+      digests[bucketOf(memberId)] ^= hashOf(memberId, incarnation);
+    }
+    return record;
+  }
+
+  /**
+   * Turns a live member into a tombstone. Writer only.
+   * @param left true if the member has left voluntarily rather than failed
+   * @return false if it is already a tombstone
+   */
+  boolean markFailed(final MemberRecord record, final long incarnation, final boolean left) {
+    final long memberId = record.memberId;
+    if (!record.isLive()) {
+      return false;
+    }
+    digests[bucketOf(memberId)] ^= hashOf(memberId, record.incarnation);
+    record.status = Status.FAILED;
+    record.left = left;
+    record.incarnation = Math.max(record.incarnation, incarnation);
+    record.failedAt = System.nanoTime();
+    --liveCount;
+    tombstones.add(record);
+    return true;
+  }
+
+  /**
+   * Forgets the tombstones older than the retention. Writer only.
+   * @return the number of tombstones removed
+   */
+  int expireTombstones() {
+    final long now = System.nanoTime();
+    int count = 0;
+    while (!tombstones.isEmpty() && now - tombstones.peekFirst().failedAt > tombstoneNanos) {
+      final MemberRecord record = tombstones.pollFirst();
+      // it may have joined again since
+      if (!record.isLive() && records.remove(record.memberId, record)) {
+        expired.put(record.memberId, record.incarnation);
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  private static int bucketOf(final long memberId) {
+    return (int) (ConsistentHashRing.hash(memberId) >>> 32) & (DIGEST_BUCKETS - 1);
+  }
+
+  private static long hashOf(final long memberId, final long incarnation) {
+    return ConsistentHashRing.hash(memberId ^ ConsistentHashRing.hash(incarnation + 1));
+  }
+}
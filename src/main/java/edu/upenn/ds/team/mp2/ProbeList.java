@@ -0,0 +1,200 @@
+package edu.upenn.ds.team.mp2;
+
+import java.util.Random;
+
+/**
+ * Randomized round-robin probe order over the other members (SWIM).
+ * Members are visited pass by pass. [0, cursor) holds the members probed in the current pass, and [cursor, size)
+ * the ones still to be probed. A new member is inserted at a random position of the unprobed part, so it is probed
+ * within the current pass, and a member is removed in O(1). The order is reshuffled in place between passes.
+ * Nothing is allocated while picking targets.
+ */
+final class ProbeList {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final Random random = new Random();
+  private long[] members = new long[INITIAL_CAPACITY];
+  private int size = 0;
+  private int cursor = 0;
+  // open addressing table from member id to (its index in members + 1). 0 means an empty slot.
+  private long[] keys = new long[INITIAL_CAPACITY * 2];
+  private int[] indices = new int[INITIAL_CAPACITY * 2];
+
+  /**
+   * @return false if the member is already in the list
+   */
+  synchronized boolean add(final long memberId) {
+    if (slotOf(memberId) >= 0) {
+      return false;
+    }
+    if (size == members.length) {
+      grow();
+    }
+    // random position among the members not probed yet in this pass
+    final int position = cursor + random.nextInt(size - cursor + 1);
+    move(position, size);
+    members[position] = memberId;
+    putIndex(memberId, position);
+    ++size;
+    return true;
+  }
+
+  /**
+   * @return false if the member is not in the list
+   */
+  synchronized boolean remove(final long memberId) {
+    final int slot = slotOf(memberId);
+    if (slot < 0) {
+      return false;
+    }
+    int hole = indices[slot] - 1;
+    removeSlot(slot);
+    if (hole < cursor) {
+      // keeps the probed part contiguous: fill the hole with the last probed member
+      move(cursor - 1, hole);
+      hole = --cursor;
+    }
+    move(size - 1, hole);
+    --size;
+    return true;
+  }
+
+  synchronized boolean contains(final long memberId) {
+    return slotOf(memberId) >= 0;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Fills the array with the next distinct targets. Starts a new, reshuffled pass if the current one ends.
+   * A member already picked at the end of the previous pass is not consumed from the new one. It is swapped with
+   * the next member to probe and stays unprobed, so every member is still probed once per pass.
+   * @return the number of targets written
+   */
+  synchronized int next(final long[] targets) {
+    final int count = Math.min(targets.length, size);
+    int n = 0;
+    while (n < count) {
+      if (cursor == size) {
+        shuffle();
+        cursor = 0;
+      }
+      // only after a new pass starts in this call. n < size, so a member not picked yet is found.
+      int i = cursor;
+      while (contains(targets, n, members[i])) {
+        ++i;
+      }
+      swap(cursor, i);
+      targets[n++] = members[cursor++];
+    }
+    return n;
+  }
+
+  /**
+   * Fills the array with distinct members picked at random, other than the excluded one.
+   * It does not move the probe order.
+   * @return the number of members written
+   */
+  synchronized int sample(final long[] members, final long excludedId) {
+    final int candidates = slotOf(excludedId) >= 0 ? size - 1 : size;
+    final int count = Math.min(members.length, candidates);
+    int n = 0;
+    while (n < count) {
+      final long memberId = this.members[random.nextInt(size)];
+      if (memberId != excludedId && !contains(members, n, memberId)) {
+        members[n++] = memberId;
+      }
+    }
+    return n;
+  }
+
+  private static boolean contains(final long[] array, final int length, final long value) {
+    for (int i = 0; i < length; ++i) {
+      if (array[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Fisher-Yates shuffle in place
+  private void shuffle() {
+    for (int i = size - 1; i > 0; --i) {
+      swap(i, random.nextInt(i + 1));
+    }
+  }
+
+  private void swap(final int i, final int j) {
+    if (i != j) {
+      final long tmp = members[i];
+      members[i] = members[j];
+      members[j] = tmp;
+      putIndex(members[i], i);
+      putIndex(members[j], j);
+    }
+  }
+
+  private void move(final int from, final int to) {
+    if (from != to) {
+      members[to] = members[from];
+      putIndex(members[to], to);
+    }
+  }
+
+  private void grow() {
+    final long[] newMembers = new long[members.length * 2];
+    System.arraycopy(members, 0, newMembers, 0, size);
+    members = newMembers;
+    keys = new long[newMembers.length * 2];
+    indices = new int[newMembers.length * 2];
+    for (int i = 0; i < size; ++i) {
+      putIndex(members[i], i);
+    }
+  }
+
+  private static int hash(final long key) {
+    final int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private int slotOf(final long key) {
+    final int mask = keys.length - 1;
+    for (int i = hash(key) & mask; indices[i] != 0; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void putIndex(final long key, final int index) {
+    final int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (indices[i] != 0 && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    indices[i] = index + 1;
+  }
+
+  // linear probing deletion with backward shift, so no tombstones are needed
+  private void removeSlot(int slot) {
+    final int mask = keys.length - 1;
+    int next = (slot + 1) & mask;
+    while (indices[next] != 0) {
+      final int home = hash(keys[next]) & mask;
+      // moves the entry back if its home slot is not in (slot, next]
+      final boolean movable = slot <= next ? (home <= slot || home > next) : (home <= slot && home > next);
+      if (movable) {
+        keys[slot] = keys[next];
+        indices[slot] = indices[next];
+        slot = next;
+      }
+      next = (next + 1) & mask;
+    }
+    indices[slot] = 0;
+  }
+}
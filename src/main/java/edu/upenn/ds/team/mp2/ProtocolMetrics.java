@@ -0,0 +1,98 @@
+package edu.upenn.ds.team.mp2;
+
+import edu.upenn.ds.team.metrics.Histogram;
+import edu.upenn.ds.team.metrics.MetricsRegistry;
+import edu.upenn.ds.team.service.TrafficRecorder;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the failure detector and the dissemination, recorded by {@link Server} and {@link MembershipProtocol},
+ * and the traffic per message {@link Type} recorded by the transport.
+ */
+final class ProtocolMetrics implements TrafficRecorder {
+
+  final LongAdder pingsSent;
+  final LongAdder pingReqsSent;
+  final LongAdder acksReceived;
+  // no direct ACK within a round period
+  final LongAdder ackTimeouts;
+  // no ACK even through the members asked with PING_REQ
+  final LongAdder indirectProbeTimeouts;
+  final LongAdder suspicionsRaised;
+  final LongAdder suspicionsRefuted;
+  // SUSPECTED received from another member, or a failed probe of ours, while suspecting the same member
+  final LongAdder suspicionConfirmations;
+  final LongAdder selfRefutations;
+  final LongAdder failuresDeclared;
+  // JOINs sent to seeds, including hedged ones
+  final LongAdder joinRequestsSent;
+  // anti-entropy exchanges started, and the buckets found to differ in the SYNCs received
+  final LongAdder syncsSent;
+  final LongAdder syncBucketsDiffering;
+  final Histogram probeRttUs;
+  final Histogram joinLatencyUs;
+  // indexed by Type.ordinal()
+  private final LongAdder[] bytesOut;
+  private final LongAdder[] bytesIn;
+  private final LongAdder[] datagramsOut;
+  private final LongAdder[] datagramsIn;
+  // bytes dropped because they could not be decoded
+  private final LongAdder corruptedBytesIn;
+
+  ProtocolMetrics(final MetricsRegistry registry) {
+    this.pingsSent = registry.counter("gossip_pings_sent_total");
+    this.pingReqsSent = registry.counter("gossip_ping_reqs_sent_total");
+    this.acksReceived = registry.counter("gossip_acks_received_total");
+    this.ackTimeouts = registry.counter("gossip_ack_timeouts_total");
+    this.indirectProbeTimeouts = registry.counter("gossip_indirect_probe_timeouts_total");
+    this.suspicionsRaised = registry.counter("gossip_suspicions_raised_total");
+    this.suspicionsRefuted = registry.counter("gossip_suspicions_refuted_total");
+    this.suspicionConfirmations = registry.counter("gossip_suspicion_confirmations_total");
+    this.selfRefutations = registry.counter("gossip_self_refutations_total");
+    this.failuresDeclared = registry.counter("gossip_failures_declared_total");
+    this.joinRequestsSent = registry.counter("gossip_join_requests_sent_total");
+    this.syncsSent = registry.counter("gossip_syncs_sent_total");
+    this.syncBucketsDiffering = registry.counter("gossip_sync_buckets_differing_total");
+    this.probeRttUs = registry.histogram("gossip_probe_rtt_us");
+    this.joinLatencyUs = registry.histogram("gossip_join_latency_us");
+
+    this.corruptedBytesIn = registry.counter("gossip_corrupted_bytes_in_total");
+
+    final Type[] types = Type.values();
+    this.bytesOut = new LongAdder[types.length];
+    this.bytesIn = new LongAdder[types.length];
+    this.datagramsOut = new LongAdder[types.length];
+    this.datagramsIn = new LongAdder[types.length];
+    for (final Type type : types) {
+      final int i = type.ordinal();
+      bytesOut[i] = registry.counter(MetricsRegistry.withLabel("gossip_bytes_out_total", "type", type.name()));
+      bytesIn[i] = registry.counter(MetricsRegistry.withLabel("gossip_bytes_in_total", "type", type.name()));
+      datagramsOut[i] = registry.counter(MetricsRegistry.withLabel("gossip_datagrams_out_total", "type", type.name()));
+      datagramsIn[i] = registry.counter(MetricsRegistry.withLabel("gossip_datagrams_in_total", "type", type.name()));
+    }
+  }
+
+  @Override
+  public void onOutbound(final Object msg, final int bytes) {
+    if (msg instanceof Message) {
+      final int i = ((Message) msg).getType().ordinal();
+      bytesOut[i].add(bytes);
+      datagramsOut[i].increment();
+    }
+  }
+
+  @Override
+  public void onInbound(final Object msg, final int bytes) {
+    if (msg instanceof Message) {
+      final int i = ((Message) msg).getType().ordinal();
+      bytesIn[i].add(bytes);
+      datagramsIn[i].increment();
+    }
+  }
+
+  @Override
+  public void onCorrupted(final int bytes) {
+    corruptedBytesIn.add(bytes);
+  }
+}
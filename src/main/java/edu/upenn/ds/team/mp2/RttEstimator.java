@@ -0,0 +1,70 @@
+package edu.upenn.ds.team.mp2;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Smoothed round-trip time of the probes to each member, as in TCP (RFC 6298).
+ * The probe timeout of a member is SRTT + 4 * RTTVAR, bounded by the given limits,
+ * so a far or slow member gets more time and a near one is detected sooner.
+ */
+final class RttEstimator {
+
+  private final long defaultTimeoutMs;
+  private final long minTimeoutMs;
+  private final long maxTimeoutMs;
+  private final ConcurrentHashMap<Long, Rtt> rtts = new ConcurrentHashMap<>();
+
+  RttEstimator(final long defaultTimeoutMs, final long minTimeoutMs, final long maxTimeoutMs) {
+    this.defaultTimeoutMs = defaultTimeoutMs;
+    this.minTimeoutMs = minTimeoutMs;
+    this.maxTimeoutMs = maxTimeoutMs;
+  }
+
+  void record(final long memberId, final long rttUs) {
+    Rtt rtt = rtts.get(memberId);
+    if (rtt == null) {
+      final Rtt newRtt = new Rtt();
+      rtt = rtts.putIfAbsent(memberId, newRtt);
+      if (rtt == null) {
+        rtt = newRtt;
+      }
+    }
+    rtt.update(rttUs);
+  }
+
+  /**
+   * @return how long to wait for an ACK from the member, before the local health multiplier
+   */
+  long getProbeTimeoutMs(final long memberId) {
+    final Rtt rtt = rtts.get(memberId);
+    if (rtt == null) {
+      return defaultTimeoutMs;
+    }
+    final long timeoutMs = rtt.getTimeoutUs() / 1000L;
+    return Math.min(Math.max(timeoutMs, minTimeoutMs), maxTimeoutMs);
+  }
+
+  void remove(final long memberId) {
+    rtts.remove(memberId);
+  }
+
+  private static final class Rtt {
+    private long srttUs = -1;
+    private long rttvarUs;
+
+    // alpha = 1/8, beta = 1/4
+    private synchronized void update(final long rttUs) {
+      if (srttUs < 0) {
+        srttUs = rttUs;
+        rttvarUs = rttUs / 2;
+      } else {
+        rttvarUs += (Math.abs(srttUs - rttUs) - rttvarUs) / 4;
+        srttUs += (rttUs - srttUs) / 8;
+      }
+    }
+
+    private synchronized long getTimeoutUs() {
+      return srttUs + 4 * rttvarUs;
+    }
+  }
+}
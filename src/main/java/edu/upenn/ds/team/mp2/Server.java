@@ -1,25 +1,41 @@
 package edu.upenn.ds.team.mp2;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-
+import edu.upenn.ds.team.metrics.Gauge;
+import edu.upenn.ds.team.metrics.MetricsRegistry;
 import edu.upenn.ds.team.service.ChannelHandlerFactory;
+import edu.upenn.ds.team.service.Compression;
+import edu.upenn.ds.team.service.InMemoryHub;
+import edu.upenn.ds.team.service.InMemoryTransport;
 import edu.upenn.ds.team.service.NettyNetworkService;
 import edu.upenn.ds.team.service.SimpleChannelHandlerFactory;
+import edu.upenn.ds.team.service.Transport;
+import io.netty.channel.EventLoop;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
 
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
 
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static edu.upenn.ds.team.mp2.Utils.getAddressFromId;
+import static edu.upenn.ds.team.mp2.Utils.getAddressFromMemberId;
+import static edu.upenn.ds.team.mp2.Utils.memberIdToString;
+import static edu.upenn.ds.team.mp2.Utils.toMemberId;
 
 /**
  * Server
@@ -28,12 +44,13 @@ import static edu.upenn.ds.team.mp2.Utils.getAddressFromId;
  * 3 table to suspected. 
  * Suspicion Mechanism: We apply suspicion mechanism to reduce false-positive rate. When a server
  * si hasn’t received ACK from sj, si suspects sj instead of determining sj failed. If si knows the 
- * liveness of a suspected one, it stops suspecting it. If not for timeout (2 sec), the server consider
- * the suspected one FAILED .
+ * liveness of a suspected one, it stops suspecting it. If not for timeout, the server consider
+ * the suspected one FAILED . The timeout gets shorter as other servers confirm the suspicion.
  * In this case,we remove that server from membershipTable and suspectTable, also set the server
  * Failed in changeTable, so whenever other server send ping to me, I can piggypack CT and tell them 
  * that sj is failed.
- * we create a ServerInboundChannelHandler(channelRead0) to handle the receive messages
+ * we create a MembershipProtocol to handle the receive messages. It runs over UDP through
+ * ServerInboundChannelHandler, or over an in-memory transport to run many servers in one process.
  */
 
 public final class Server {
@@ -42,15 +59,50 @@ public final class Server {
 //http://avro.apache.org/docs/1.8.1/spec.html#Data+Serialization
   private static final Logger LOG = Logger.getLogger(Server.class.getClass().getName());
   private static final int MAX_NUM_CONTACTS = 3;
+  private static final int NUM_INDIRECT_PROBES = 3; // members asked to ping a target that has not answered
   private static final int ROUND_PERIOD_MS = 300; // the period for each round
-  private static final int SUSPECT_TIMEOUT_MS = 2000; // the timeout to determine that a suspected is dead
-  private static final int CHANGE_TABLE_TIMEOUT_MS = 1000; // the timeout for cleaning up the change table
+  private static final int MIN_PROBE_TIMEOUT_MS = 100; // lower bound of the RTT-based ACK deadline
+  // a suspect is considered dead after SUSPICION_MULT * log10(N) rounds if EXPECTED_CONFIRMATIONS other members
+  // suspect it too, and after up to SUSPICION_MAX_MULT times as long, at most SUSPICION_MAX_MS, without confirmations
+  private static final int SUSPICION_MULT = 4;
+  private static final int SUSPICION_MAX_MULT = 3;
+  private static final int SUSPICION_MAX_MS = 4000;
+  private static final int EXPECTED_CONFIRMATIONS = 3;
+  private static final int MAX_HEALTH_SCORE = 8; // the ACK deadlines are stretched up to (MAX_HEALTH_SCORE + 1) times
+  private static final int CHANGE_TABLE_SIZE = 1024; // changes kept for dissemination, one per member
+  private static final int RETRANSMIT_MULT = 4; // a change is sent RETRANSMIT_MULT * log10(N + 1) times
+  private static final int ACK_PAYLOAD_BYTES = 1024; // budget for the changes piggybacked on an ACK
+  static final int DATAGRAM_BUDGET_BYTES = 1400; // messages to the same member are packed up to this size
+  static final int COMPRESSION_THRESHOLD_BYTES = 512; // PINGs and small ACKs are not worth compressing
+  private static final int JOIN_TIMEOUT_MS = 500; // the first wait for a JOIN_ACK before asking more seeds
+  private static final int MAX_JOIN_BACKOFF_MS = 4000; // the wait doubles on every timeout up to this
+  private static final int JOIN_FANOUT = 2; // seeds sent a JOIN at once
+  private static final int JOIN_CHUNK_TIMEOUT_MS = 500; // the timeout to wait for the rest of JOIN_ACK chunks
+  private static final int MAX_JOIN_ATTEMPTS = 5; // join fails after this many timeouts in a row without progress
+  private static final int MAX_SNAPSHOT_INTRODUCERS = 3; // members from the snapshot tried as introducers
+  private static final int EVENT_BUFFER_SIZE = 4096; // membership events kept for slow subscribers
+  private static final int SNAPSHOT_PERIOD_MS = 5000; // how often the membership table is persisted
+  private static final int SYNC_PERIOD_ROUNDS = 20; // rounds between anti-entropy exchanges with a random member
+  private static final int SYNC_CHUNK_SIZE = 20; // entries per SYNC_ACK datagram, leaving room for the digest
+  private static final int TOMBSTONE_MS = 60000; // a FAILED member is remembered this long against stale gossip
+  private static final int JOIN_ACK_CHUNK_SIZE = 40; // entries per JOIN_ACK datagram, to stay below the MTU
+  private static final int JOIN_ACK_RETAIN_MS = 10000; // how long an introducer keeps chunks for retransmission
   static final int DEFAULT_PORT = 7000;
-  public static volatile boolean stopped = false;
 
-  private final NettyNetworkService networkService;
-  //id =<ip, port, startup_timestamp>
+  private final Transport transport;
+  private final MembershipProtocol protocol;
+  private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+  private final ProtocolMetrics metrics = new ProtocolMetrics(metricsRegistry);
+  private final MembershipEvents events = new MembershipEvents(EVENT_BUFFER_SIZE);
+  // null if disabled
+  private final ConsistentHashRing hashRing;
+  // the timer wheel for suspicions. stopped on close only if this server has created it.
+  private final Timer timer;
+  private final boolean ownsTimer;
+  //id =<ip, port, startup_timestamp>. sent only in JOIN
   private final Id id;
+  //id packed into a long. used on the wire and as the key of the tables
+  private final long memberId;
   private final int port;
   //因为多线程环境下，使用HashMap进行put操作会引起死循环，导致CPU利用率接近100%，所以在并发情况下不能使用HashMap，
   //You should use ConcurrentHashMap when you need very high concurrency in your project.
@@ -58,26 +110,41 @@ public final class Server {
   
   //When you read from a ConcurrentHashMap using get(), there are no locks, contrary to the HashTable 
   //for which all operations are simply synchronized. 
-  private final ConcurrentHashMap<Id, Status> membershipTable;
-  private final ConcurrentHashMap<Id, Long> suspectTable;
-  /*
-  缓存的主要作用是暂时在内存中保存业务系统的数据处理结果，并且等待下次访问使用.缓存的作用就是将这些来自不易的数据保存在内存中，
-  当有其他线程或者客户端需要查询相同的数据资源时，直接从缓存的内存块中返回数据，这样不但可以提高系统的响应时间，同时也可以节省对
-  这些数据的处理流程的资源消耗，整体上来说，系统性能会有大大的提升。
-  可以说在计算机和网络领域，缓存无处不在。可以这么说，只要有硬件性能不对等，涉及到网络传输的地方都会有缓存的身影。
-  Guava Cache是一个全内存的本地缓存实现，它提供了线程安全的实现机制
-  */
-  /*
-  http://kveeresham.blogspot.com/2014/08/google-guava-cachebuilder.html
-  Google Guava CacheBuilder
-  This cache is mainly used where:
-  1. Where the same data is retrieved multiple times
-  2. Where the time required to access the data to be small
-  3. Cache size is limited and known
-  */
-  private final Cache<Id, Status> changeTable;
+  // status and incarnation of each member, written only on the event loop of the transport.
+  // a member increases its own incarnation to refute a suspicion of itself.
+  private final MembershipTable membershipTable;
+  // suspicion deadlines on a timer wheel. a suspect is declared FAILED when its deadline passes
+  private final SuspicionTimer suspectTable;
+  // the latest change sequence received from each member. sent in PINGs so that ACKs only carry newer changes.
+  private final ConcurrentHashMap<Long, Long> peerSeqTable;
+  // bounded table of the pending changes, sent most urgent first until each has reached everyone
+  private final ChangeTable changeTable;
+  // compares views with other members now and then, for what the change table has failed to disseminate
+  private final AntiEntropy antiEntropy;
 
-  private final BlockingQueue<Id> receivedIds;
+  private final BlockingQueue<Long> receivedIds;
+  // targets pinged and not acknowledged yet, with the time of the ping
+  private final ConcurrentHashMap<Long, Long> pendingProbes;
+  // counted down by the round task once the server is stopped
+  private final CountDownLatch stopLatch = new CountDownLatch(1);
+  // the order in which the other members are pinged
+  private final ProbeList probeList;
+  // the event loop running the rounds. targetBuffer is only touched there.
+  private EventLoop eventLoop;
+  private volatile ScheduledFuture<?> rounds;
+  private final long[] targetBuffer = new long[MAX_NUM_CONTACTS];
+  private final long[] indirectBuffer = new long[NUM_INDIRECT_PROBES];
+  private final long[] syncBuffer = new long[1];
+  private long lastRoundAt = 0;
+  private long roundCount = 0;
+  // smoothed RTT of each member, for its ACK deadline
+  private final RttEstimator rttTable;
+  // stretches the ACK deadlines while this server itself looks slow
+  private final LocalHealth localHealth;
+  private final JoinAckAssembler joinAckAssembler;
+  // null if the membership is not persisted
+  private final MembershipSnapshot snapshot;
+  private ScheduledExecutorService snapshotExecutor;
   /*
   http://tutorials.jenkov.com/java-util-concurrent/blockingqueue.html
   阻塞队列（BlockingQueue）是一个支持两个附加操作的队列。这两个附加的操作是：在队列为空时，获取元素的线程会等待队列变为非空。
@@ -86,73 +153,296 @@ public final class Server {
   */
   //A socket address has two parts, an IP address and a port number.InetSocketAddress represents a socket 
   //address.
-  private InetSocketAddress introducerAddress;
+  // the seeds to join through. empty for the first server of a group.
+  private final List<InetSocketAddress> introducerAddresses;
   //used in Launcher.java
   public static Server.Builder newBuilder() {
     return new Builder();
   }
 
-  private Server(final Id id, final int port, final InetSocketAddress address) {
+  private Server(final Id id, final int port, final List<InetSocketAddress> addresses, final boolean nativeTransport,
+                 final double dropRate, final Compression compression, final InMemoryHub hub, final Timer timer,
+                 final Path snapshotPath, final int virtualNodes, final GroupMultiplexer multiplexer,
+                 final int group, final boolean exitOnCrash) {
     this.id = id;
+    this.snapshot = snapshotPath == null ? null : new MembershipSnapshot(snapshotPath);
+    this.memberId = toMemberId(id, nextGeneration(snapshot));
     this.port = port;
-    this.membershipTable = new ConcurrentHashMap<>();
-    this.suspectTable = new ConcurrentHashMap<>();
+    this.membershipTable = new MembershipTable(TOMBSTONE_MS);
+    this.ownsTimer = timer == null;
+    this.timer = ownsTimer ? SuspicionTimer.newTimer() : timer;
+    this.suspectTable = new SuspicionTimer(this.timer, ROUND_PERIOD_MS, SUSPICION_MULT, SUSPICION_MAX_MULT,
+        SUSPICION_MAX_MS, EXPECTED_CONFIRMATIONS, membershipTable, new SuspicionTimer.Listener() {
+          @Override
+          public void onSuspicionTimeout(final long targetId) {
+            declareFailed(targetId);
+          }
+        }, new Executor() {
+          // the membership table and the suspicions are updated on the event loop only
+          @Override
+          public void execute(final Runnable command) {
+            transport.getEventLoop().execute(command);
+          }
+        });
+    this.peerSeqTable = new ConcurrentHashMap<>();
     //ArrayBlockingQueue是一个用数组实现的有界阻塞队列。此队列按照先进先出（FIFO）的原则对元素进行排序。
-    //ServerInboundChannelHandler will put new objects into receivedIds
+    //MembershipProtocol will put the introducer into receivedIds once the join completes
     this.receivedIds = new ArrayBlockingQueue<>(2 * MAX_NUM_CONTACTS);
+    this.pendingProbes = new ConcurrentHashMap<>();
+    this.probeList = new ProbeList();
+    this.rttTable = new RttEstimator(ROUND_PERIOD_MS, MIN_PROBE_TIMEOUT_MS, ROUND_PERIOD_MS);
+    this.localHealth = new LocalHealth(MAX_HEALTH_SCORE);
     
-    this.changeTable = CacheBuilder.newBuilder()
-    //To clean up the CT, we use timeout (1 sec) to evict old entries that are already disseminated into other nodes.
-    //Expire after write: Cache automatically removes the entry once the time is elapsed after the last write.
-        .expireAfterWrite(CHANGE_TABLE_TIMEOUT_MS, TimeUnit.MILLISECONDS)//最后一次写入后的一段时间移出,写后1秒过期
-        .maximumSize(100) //缓存大小为100
-        .build();
-    this.introducerAddress = address;
-    final ServerInboundChannelHandlerFactory serverInboundChannelHandlerFactory =
-        new ServerInboundChannelHandlerFactory(id, membershipTable, changeTable, suspectTable, receivedIds);
-    final ChannelHandlerFactory outboundChannelHandlerFactory =
-        new SimpleChannelHandlerFactory(OutboundChannelHandler.class);
-    this.networkService = NettyNetworkService.newBuilder()
-        .setServerGroupNum(2) // to be simple
-        .addServerChannelHandlerFactory(serverInboundChannelHandlerFactory)
-        .addServerChannelHandlerFactory(outboundChannelHandlerFactory)
-        .addClientChannelHandlerFactory(new SimpleChannelHandlerFactory(ClientInboundChannelHandler.class))
-        .addClientChannelHandlerFactory(outboundChannelHandlerFactory)
-        .setMessageType(Message.class)
-        .build();
-    serverInboundChannelHandlerFactory.setNetworkService(networkService);
+    //To clean up the CT, a change is retired once it has been sent enough times to reach everyone with high
+    //probability, instead of after a fixed timeout.
+    this.changeTable = new ChangeTable(CHANGE_TABLE_SIZE, RETRANSMIT_MULT, ACK_PAYLOAD_BYTES, membershipTable);
+    this.introducerAddresses = addresses;
+    this.joinAckAssembler = new JoinAckAssembler();
+    this.antiEntropy = new AntiEntropy(memberId, membershipTable, SYNC_CHUNK_SIZE, metrics);
+    this.hashRing = virtualNodes > 0 ? new ConsistentHashRing(virtualNodes) : null;
+    if (hashRing != null) {
+      // updated by the same transitions that publish the events, before they return
+      events.setInlineListener(new MembershipListener() {
+        @Override
+        public void onEvent(final MembershipEventType type, final long targetId, final long incarnation) {
+          if (type == MembershipEventType.JOIN) {
+            hashRing.add(targetId);
+          } else if (type == MembershipEventType.FAILED || type == MembershipEventType.LEAVE) {
+            hashRing.remove(targetId);
+          }
+        }
+      });
+    }
+    this.protocol = new MembershipProtocol(memberId, membershipTable, changeTable,
+        suspectTable, peerSeqTable, receivedIds, pendingProbes, probeList,
+        new JoinAckSender(memberId, JOIN_ACK_CHUNK_SIZE, JOIN_ACK_RETAIN_MS), joinAckAssembler,
+        new IndirectProbeTable(ROUND_PERIOD_MS), rttTable, localHealth, metrics, events,
+        antiEntropy);
+    if (multiplexer != null) {
+      // the socket and the event loop are shared with the other groups in this process
+      this.transport = multiplexer.newTransport(group, protocol, metrics);
+      this.transport.setDropRate(dropRate);
+    } else if (hub != null) {
+      // another member in this process. messages are handed over without sockets or serialization.
+      this.transport = new InMemoryTransport(hub, new InMemoryTransport.Receiver() {
+        @Override
+        public void receive(final Object msg) {
+          protocol.dispatch((Message) msg);
+        }
+      });
+      this.transport.setDropRate(dropRate);
+    } else {
+      final ChannelHandlerFactory outboundChannelHandlerFactory =
+          new SimpleChannelHandlerFactory(OutboundChannelHandler.class);
+      this.transport = NettyNetworkService.newBuilder()
+          .setServerGroupNum(2) // to be simple
+          .setSharedSocket(true) // pings and replies leave from the server port
+          // handlers keep only primitive ids and enums out of messages, unless they are handed to another loop
+          .setReuseDecodedMessages(!nativeTransport)
+          .setNativeTransport(nativeTransport)
+          .setDropRate(dropRate)
+          .setTrafficRecorder(metrics)
+          .setCoalesceBudget(DATAGRAM_BUDGET_BYTES) // one flush per round or event-loop tick
+          .setCompression(compression, COMPRESSION_THRESHOLD_BYTES)
+          .addServerChannelHandlerFactory(new ServerInboundChannelHandlerFactory(protocol))
+          .addServerChannelHandlerFactory(outboundChannelHandlerFactory)
+          .addClientChannelHandlerFactory(new SimpleChannelHandlerFactory(ClientInboundChannelHandler.class))
+          .addClientChannelHandlerFactory(outboundChannelHandlerFactory)
+          .setMessageType(Message.class)
+          .build();
+    }
+    protocol.setTransport(transport);
+    if (!exitOnCrash) {
+      // exiting would crash the other servers in this process too
+      protocol.setCrashHandler(new Runnable() {
+        @Override
+        public void run() {
+          crash();
+        }
+      });
+    }
+    registerGauges();
+  }
+
+  private void registerGauges() {
+    metricsRegistry.gauge("gossip_membership_size", new Gauge() {
+      @Override
+      public long getValue() {
+        return membershipTable.size();
+      }
+    });
+    metricsRegistry.gauge("gossip_local_health_score", new Gauge() {
+      @Override
+      public long getValue() {
+        return localHealth.getScore();
+      }
+    });
+    metricsRegistry.gauge("gossip_change_table_size", new Gauge() {
+      @Override
+      public long getValue() {
+        return changeTable.size();
+      }
+    });
+    metricsRegistry.gauge("gossip_change_table_evictions_total", new Gauge() {
+      @Override
+      public long getValue() {
+        return changeTable.getEvictedCount();
+      }
+    });
+    metricsRegistry.gauge("gossip_send_failures_total", new Gauge() {
+      @Override
+      public long getValue() {
+        return transport.getSendFailureCount();
+      }
+    });
+    metricsRegistry.gauge("gossip_dropped_messages_total", new Gauge() {
+      @Override
+      public long getValue() {
+        return transport.getDroppedMessageCount();
+      }
+    });
+    metricsRegistry.gauge("gossip_events_published_total", new Gauge() {
+      @Override
+      public long getValue() {
+        return events.getPublishedCount();
+      }
+    });
+    if (hashRing != null) {
+      metricsRegistry.gauge("gossip_hash_ring_version", new Gauge() {
+        @Override
+        public long getValue() {
+          return hashRing.getSnapshot().getVersion();
+        }
+      });
+    }
   }
 
   private void initialize() throws InterruptedException {
-    LOG.log(Level.INFO, "Put itself {0} into the membership list", id);
-    membershipTable.put(id, Status.ACTIVE);
-    changeTable.put(id, Status.JOIN);
-    if (introducerAddress != null) {
-      join();
+    // the file is read here, and the tables are filled on the event loop, their only writer
+    final List<Entry> saved = snapshot == null ? Collections.<Entry>emptyList() : snapshot.load();
+    final List<Entry> restored = new ArrayList<>();
+    transport.getEventLoop().submit(new Runnable() {
+      @Override
+      public void run() {
+        LOG.log(Level.INFO, "Put itself {0} into the membership list", id);
+        changeTable.put(membershipTable.add(memberId, 0L), Status.JOIN, 0L);
+        events.publish(MembershipEventType.JOIN, memberId, 0L);
+        restoreSnapshot(saved, restored);
+      }
+    }).syncUninterruptibly();
+    if (!restored.isEmpty()) {
+      // the members we knew are probed right away, not only once the join has succeeded or given up
+      startRounds();
+    }
+
+    // the given seeds in random order, so that servers starting together spread over them,
+    // then some of the members we knew in the previous run
+    final List<InetSocketAddress> seeds = new ArrayList<>(introducerAddresses);
+    Collections.shuffle(seeds);
+    Collections.shuffle(restored);
+    for (int i = 0; i < restored.size() && i < MAX_SNAPSHOT_INTRODUCERS; ++i) {
+      seeds.add(getAddressFromMemberId(restored.get(i).getMember()));
+    }
+    if (seeds.isEmpty()) {
+      return;
+    }
+    try {
+      join(seeds);
+    } catch (final RuntimeException e) {
+      if (restored.isEmpty()) {
+        throw e;
+      }
+      // the restored members learn about us when we ping them
+      LOG.log(Level.WARNING, "Failed to join. Continue with the {0} members of the snapshot", restored.size());
     }
   }
 
-  private void join() throws InterruptedException {
-    // send a message to introducer
-    LOG.log(Level.INFO, "Send a join message to the introducer {0}", introducerAddress);
-    final Message msg = Message.newBuilder()
-        .setType(Type.JOIN)
-        .setSenderId(id)
-        .build();
+  // puts the members of the previous run into the tables, so that they are probed from the first round
+  private void restoreSnapshot(final List<Entry> saved, final List<Entry> restored) {
+    for (final Entry entry : saved) {
+      final long targetId = entry.getMember();
+      // our own previous run had the same address and port. it is gone.
+      if ((targetId >>> 16) == (memberId >>> 16) || membershipTable.add(targetId, entry.getIncarnation()) == null) {
+        continue;
+      }
+      probeList.add(targetId);
+      restored.add(entry);
+      events.publish(MembershipEventType.JOIN, targetId, entry.getIncarnation());
+    }
+    if (snapshot != null) {
+      LOG.log(Level.INFO, "Restored {0} members from the snapshot", restored.size());
+    }
+  }
 
-    networkService.send(introducerAddress, msg);
+  private void saveSnapshot() {
+    try {
+      final int count = snapshot.save(membershipTable, memberId);
+      LOG.log(Level.FINE, "Saved {0} members to the snapshot", count);
+    } catch (final Exception e) {
+      // must not cancel the following snapshots
+      LOG.log(Level.WARNING, "Failed to save the snapshot", e);
+    }
+  }
 
-    // wait for a response for the join message
-    if (receivedIds.poll(3000, TimeUnit.MILLISECONDS) == null) {
+  /**
+   * Sends a JOIN to JOIN_FANOUT seeds at once, and hedges with the next seeds whenever nobody answers in time,
+   * waiting longer each time. The first introducer answering wins, and JoinAckAssembler drops the chunks of the
+   * others. Once one has answered, only its missing chunks are requested again.
+   */
+  private void join(final List<InetSocketAddress> seeds) throws InterruptedException {
+    final long startedAt = System.nanoTime();
+    int nextSeed = sendJoin(seeds, 0);
+
+    // wait until all the chunks of the membership table arrive. they are merged one by one on arrival.
+    int failures = 0;
+    int receivedCount = 0;
+    long timeoutMs = JOIN_TIMEOUT_MS;
+    while (receivedIds.poll(receivedCount == 0 ? timeoutMs : JOIN_CHUNK_TIMEOUT_MS,
+        TimeUnit.MILLISECONDS) == null) {
       //取走BlockingQueue里排在首位的对象,若不能立即取出,则可以等time参数规定的时间,取不到时返回null
-      //failed to receive a response for join
-      //try agin
-      networkService.send(introducerAddress, msg);
-      if (receivedIds.poll(3000, TimeUnit.MILLISECONDS) == null) {
-        // hasn't received any message from the introducer
-        throw new RuntimeException("Failed to receive a membership list from the introducer " + introducerAddress);
+      final int newReceivedCount = joinAckAssembler.getReceivedCount();
+      if (newReceivedCount > receivedCount) {
+        failures = 0;
+      } else if (++failures >= MAX_JOIN_ATTEMPTS) {
+        // hasn't received any message from the introducers
+        throw new RuntimeException("Failed to receive a membership list from the introducers " + seeds);
+      }
+      receivedCount = newReceivedCount;
+      if (receivedCount > 0) {
+        //try again, only for the missing chunks and only to the introducer that has answered
+        final Message retry = Message.newBuilder()
+            .setType(Type.JOIN)
+            .setSenderId(id)
+            .setSender(memberId)
+            .setMissingChunks(joinAckAssembler.getMissingChunks())
+            .setSnapshot(joinAckAssembler.getSnapshotId())
+            .build();
+        transport.sendAsync(getAddressFromMemberId(joinAckAssembler.getIntroducerId()), retry);
+      } else {
+        // exponential backoff with jitter, so that servers restarting together do not retry in lockstep
+        final long backoffMs = Math.min((long) JOIN_TIMEOUT_MS << failures, MAX_JOIN_BACKOFF_MS);
+        timeoutMs = backoffMs / 2 + ThreadLocalRandom.current().nextLong(backoffMs);
+        nextSeed = sendJoin(seeds, nextSeed);
       }
     }
+    metrics.joinLatencyUs.record((System.nanoTime() - startedAt) / 1000L);
+  }
+
+  // sends a JOIN to the next JOIN_FANOUT seeds in turn, and returns the index of the seed after them
+  private int sendJoin(final List<InetSocketAddress> seeds, final int from) {
+    final Message msg = Message.newBuilder()
+        .setType(Type.JOIN)
+        .setSenderId(id)
+        .setSender(memberId)
+        .build();
+    final int count = Math.min(JOIN_FANOUT, seeds.size());
+    for (int i = 0; i < count; ++i) {
+      final InetSocketAddress seed = seeds.get((from + i) % seeds.size());
+      LOG.log(Level.INFO, "Send a join message to the introducer {0}", seed);
+      transport.sendAsync(seed, msg);
+    }
+    metrics.joinRequestsSent.add(count);
+    return (from + count) % seeds.size();
   }
 /*
 first initialize itself:
@@ -171,120 +461,287 @@ each entry <id, status> in the received table,
 then go to the loop to gossip.
 After a server s joins the network, s periodically (0.3 second) picks a fixed number of servers
 (contactList) , sends PING to them, and wait fo r the response. If s hasn’t received ACK from si until
-next period, s will denote si as SUSPECTED and add it to ST (Suspicion Mechanism). Status changes
+the deadline, s asks k other members to ping si (PING_REQ). If none of them reports an
+ACK from si (INDIRECT_ACK) within another period, s will denote si as SUSPECTED and add it to ST
+(Suspicion Mechanism).
+The deadline follows the smoothed RTT to si, and both waits are stretched while s itself misses ACKs or starts
+rounds late (local health), so that a slow s does not suspect healthy servers.
+Rounds are scheduled at a fixed rate on the event loop, and the ACK check is scheduled separately. Status changes
 will be disseminated through Change Table carried by ACK messages.
 */
   public void run() {
-    LOG.log(Level.INFO, "Server ({0}) gets started", id);
     try {
-      networkService.start(port);
+      start();
+      // this thread only waits until the server stops.
+      stopLatch.await();
+    } catch (final Exception e) {
+      LOG.log(Level.SEVERE, "Exception is thrown", e);
+    } finally {
+      close();
+    }
+  }
 
-      initialize();
+  /**
+   * Joins the group and starts the rounds without blocking the calling thread after the join.
+   * Used to run many servers in one process.
+   */
+  public void start() throws InterruptedException {
+    LOG.log(Level.INFO, "Server ({0}) gets started", id);
+    if (!transport.start(port)) {
+      throw new IllegalStateException("Failed to start the transport at port " + port);
+    }
 
-      // generate a ping message
-      final Message ping = Message.newBuilder()
-          .setType(Type.PING)
-          .setSenderId(id)
-          .build();
+    initialize();
+    if (rounds == null) {
+      startRounds();
+    }
+
+    if (snapshot != null) {
+      // file I/O stays off the event loop
+      snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("snapshot", true));
+      snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          saveSnapshot();
+        }
+      }, SNAPSHOT_PERIOD_MS, SNAPSHOT_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  // rounds run on the event loop of the transport at a fixed rate.
+  private void startRounds() {
+    eventLoop = transport.getEventLoop();
+    rounds = eventLoop.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        probe();
+      }
+    }, 0, ROUND_PERIOD_MS, TimeUnit.MILLISECONDS);
+  }
+
+  // stops sending and receiving at once, without a LEAVE, as if the process had crashed.
+  // the resources are released by close().
+  private void crash() {
+    LOG.log(Level.INFO, "Server ({0}) crashes", id);
+    if (rounds != null) {
+      rounds.cancel(false);
+    }
+    transport.stop();
+    stopLatch.countDown();
+  }
+
+  public void close() {
+    if (rounds != null) {
+      rounds.cancel(false);
+    }
+    if (snapshotExecutor != null) {
+      snapshotExecutor.shutdown();
+      try {
+        snapshotExecutor.awaitTermination(SNAPSHOT_PERIOD_MS, TimeUnit.MILLISECONDS);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      // the latest view for the next run
+      saveSnapshot();
+    }
+    suspectTable.stop();
+    if (ownsTimer) {
+      timer.stop();
+    }
+    LOG.log(Level.INFO, "Shutdown network service");
+    transport.stop();
+    transport.waitForClose();
+  }
+
+  public MetricsRegistry getMetricsRegistry() {
+    return metricsRegistry;
+  }
 
-      while (!stopped) {
+  /**
+   * @return the stream of membership changes seen by this server
+   */
+  public MembershipEvents getEvents() {
+    return events;
+  }
+
+  /**
+   * @return the consistent-hash ring over the live members, or null if it is not enabled
+   */
+  public ConsistentHashRing getHashRing() {
+    return hashRing;
+  }
+
+  public int getMembershipSize() {
+    return membershipTable.size();
+  }
+
+  // one round: sends pings to the next targets and schedules the check of their ACKs
+  private void probe() {
+    if (protocol.isStopped()) {
+      stopLatch.countDown();
+      return;
+    }
+    // a round starting late means the event loop is overloaded or the process was paused
+    final long now = System.nanoTime();
+    if (lastRoundAt != 0 && now - lastRoundAt > TimeUnit.MILLISECONDS.toNanos(ROUND_PERIOD_MS * 3 / 2)) {
+      localHealth.degrade();
+    }
+    lastRoundAt = now;
+    try {
+      membershipTable.expireTombstones();
+      if (++roundCount % SYNC_PERIOD_ROUNDS == 0) {
+        sync();
+      }
   /*
   each server “randomly” chooses m(=3) members to
   contact in each iteration. For both the randomness and completeness for failure detection, we
-  create a new queue from the membership list and permute it randomly. In each iteration,
-  take m ids from the queue. If the queue is empty, a new randomly permutated queue is built.
+  walk through a randomly permutated list of the members. In each iteration, take the next m ids.
+  The list is kept up to date on join and failure, and permutated again in place after each pass.
   */
-        LOG.log(Level.FINER, "Fetch active ids from the membership table");
-        final Queue<Id> activeIds = getActiveIds();
-        while (!stopped && activeIds.size() > 0) {
-          LOG.log(Level.FINER, "Start to ping");
-          // pick nodes
-          final List<Id> targets = getTargets(activeIds);
-          // send a ping message to targets
-          for (final Id targetId : targets) {
-            LOG.log(Level.FINER, "Send a ping to {0}", targetId);
-            networkService.send(getAddressFromId(targetId), ping);
-          }
+      LOG.log(Level.FINER, "Start to ping");
+      // pick nodes
+      final int count = probeList.next(targetBuffer);
+      if (count == 0) {
+        return;
+      }
+      final long sentAt = System.nanoTime();
+      // send a ping message to targets
+      for (int i = 0; i < count; ++i) {
+        final long targetId = targetBuffer[i];
+        if (LOG.isLoggable(Level.FINER)) {
+          LOG.log(Level.FINER, "Send a ping to {0}", memberIdToString(targetId));
+        }
+        // MembershipProtocol removes it on ACK
+        pendingProbes.put(targetId, sentAt);
+        // tell the target which of its changes we already have
+        final Long seq = peerSeqTable.get(targetId);
+        final Message ping = Message.newBuilder()
+            .setType(Type.PING)
+            .setSender(memberId)
+            .setSeq(seq == null ? 0L : seq)
+            .build();
+        transport.sendAsync(getAddressFromMemberId(targetId), ping);
+        metrics.pingsSent.increment();
 
-          TimeUnit.MILLISECONDS.sleep(ROUND_PERIOD_MS);
-
-          // check responses from targets
-          final List<Id> receivedList = new ArrayList<>(MAX_NUM_CONTACTS);
-          //draining from blockingQueue into receivedList
-          ///移除此队列中可用的元素，并将它们添加到给定 receivedList 中。
-          receivedIds.drainTo(receivedList);
-          for (final Id targetId : targets) {
-            if (receivedList.indexOf(targetId) != -1) {
-              continue;
-            }
-            // has not received a response from the target
-            // suspect it to be dead
-            if (membershipTable.get(targetId) == Status.ACTIVE &&
-                suspectTable.putIfAbsent(targetId, System.currentTimeMillis()) == null) { // put it into the suspectTable
-              // it is suspected for the first time.
-              LOG.log(Level.INFO, "Not received a response from {0}. SUSPECT", targetId);
-              membershipTable.put(targetId, Status.SUSPECTED); // it should be active before
-              changeTable.put(targetId, Status.SUSPECTED);
-            }
-          }
-          //in ServerInboundChannelHandler, when the server receive ACK from other server(with CT),if that 
-          //suspected server is active in CT,then we use mergeActive() which remove that server from suspectTable
-          //Or if it receive that suspect server in the next round, we also think it is active
-          //check suspects whether it is timed out
-          final long currentTime = System.currentTimeMillis();
-          for (final Map.Entry<Id, Long> entry : suspectTable.entrySet()) {
-            final Id targetId = entry.getKey();
-            if (currentTime - entry.getValue() > SUSPECT_TIMEOUT_MS) {
-              if (membershipTable.get(targetId) == Status.SUSPECTED) {
-                LOG.log(Level.INFO, "{0} is considered FAILED", targetId);
-                changeTable.put(targetId, Status.FAILED);
-                membershipTable.remove(targetId); // remove from the membership table
-              }
-              // already mark it as failed.
-              // just remove it from the suspected table if necessary.
-              suspectTable.remove(targetId); // remove from suspectTable
-            }
+        // check the response as a separate step at the ACK deadline of the target
+        eventLoop.schedule(new Runnable() {
+          @Override
+          public void run() {
+            checkAck(targetId, sentAt);
           }
-        }
+        }, localHealth.scale(rttTable.getProbeTimeoutMs(targetId)), TimeUnit.MILLISECONDS);
       }
+      // the pings of a round leave together
+      transport.flush();
     } catch (final Exception e) {
-      LOG.log(Level.SEVERE, "Exception is thrown", e);
-    } finally {
-      LOG.log(Level.INFO, "Shutdown network service");
-      networkService.stop();
-      networkService.waitForClose();
+      // an exception must not cancel the following rounds
+      LOG.log(Level.SEVERE, "Exception is thrown in a round", e);
     }
   }
 
-  private List<Id> getTargets(final Queue<Id> activeIds) {
-    final List<Id> targets = new ArrayList<>(MAX_NUM_CONTACTS);
-    while (targets.size() < MAX_NUM_CONTACTS && activeIds.size() > 0) {
-      final Id target = activeIds.poll();
-      if (membershipTable.containsKey(target)) { // only send a ping to ACTIVE or SUSPECTED one
-        targets.add(target);
-      }
+  // compares views with a random member. it answers only if they differ.
+  private void sync() {
+    if (probeList.sample(syncBuffer, memberId) > 0) {
+      transport.sendAsync(getAddressFromMemberId(syncBuffer[0]), antiEntropy.newSync());
     }
-    return targets;
   }
 
-  private Queue<Id> getActiveIds() {
-    final List<Id> ids = new ArrayList<>(membershipTable.size());
-    for (final Id targetId : membershipTable.keySet()) {
-      if (id.equals(targetId)) {
-        continue;
+  private void checkAck(final long targetId, final long sentAt) {
+    final Long pingedAt = pendingProbes.get(targetId);
+    if (pingedAt == null || pingedAt != sentAt) {
+      return; // acknowledged, or pinged again by a later round
+    }
+    final Status status = membershipTable.getStatus(targetId);
+    if (status == null || status == Status.FAILED) {
+      pendingProbes.remove(targetId, sentAt);
+      return; // already removed
+    }
+    // has not received a response from the target. it may be our own fault, so we are less sure of ourselves,
+    // unless the target is suspected by others too. a suspect is still probed to confirm the suspicion.
+    metrics.ackTimeouts.increment();
+    if (status == Status.ACTIVE) {
+      localHealth.degrade();
+    }
+    // the ping or the ACK may just be lost, so ask other members to ping it before suspecting it.
+    final int count = probeList.sample(indirectBuffer, targetId);
+    if (count == 0) {
+      pendingProbes.remove(targetId, sentAt);
+      suspect(targetId);
+      return;
+    }
+    final Message pingReq = Message.newBuilder()
+        .setType(Type.PING_REQ)
+        .setSender(memberId)
+        .setTarget(targetId)
+        .build();
+    for (int i = 0; i < count; ++i) {
+      transport.sendAsync(getAddressFromMemberId(indirectBuffer[i]), pingReq);
+    }
+    metrics.pingReqsSent.add(count);
+
+    // MembershipProtocol removes the target from pendingProbes on an ACK or an INDIRECT_ACK
+    eventLoop.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (pendingProbes.remove(targetId, sentAt)) {
+          metrics.indirectProbeTimeouts.increment();
+          suspect(targetId);
+        }
       }
-      ids.add(targetId);
+    }, localHealth.scale(ROUND_PERIOD_MS), TimeUnit.MILLISECONDS);
+  }
+
+  // suspect it to be dead, or confirm the suspicion of another member
+  private void suspect(final long targetId) {
+    final MemberRecord record = membershipTable.get(targetId);
+    if (record != null && record.status == Status.SUSPECTED && suspectTable.confirm(record, memberId)) {
+      // we cannot reach it either. pass the confirmation on.
+      LOG.log(Level.INFO, "Not received a response from suspected {0}. CONFIRM", memberIdToString(targetId));
+      changeTable.put(record, Status.SUSPECTED, record.incarnation, memberId);
+      metrics.suspicionConfirmations.increment();
+    } else if (record != null && record.status == Status.ACTIVE &&
+        suspectTable.suspect(record, memberId)) { // put it into the suspectTable
+      // it is suspected for the first time.
+      LOG.log(Level.INFO, "Not received a response from {0}. SUSPECT", memberIdToString(targetId));
+      membershipTable.update(record, Status.SUSPECTED, record.incarnation); // it should be active before
+      changeTable.put(record, Status.SUSPECTED, record.incarnation, memberId);
+      metrics.suspicionsRaised.increment();
+      events.publish(MembershipEventType.SUSPECT, targetId, record.incarnation);
+    }
+  }
+
+  //in MembershipProtocol, when the server receive ACK from other server(with CT),if that
+  //suspected server is active in CT,then we use mergeActive() which cancels its deadline in suspectTable.
+  //Or if it receive that suspect server in the next round, we also think it is active.
+  //Otherwise the deadline expires and the suspect is considered FAILED.
+  private void declareFailed(final long targetId) {
+    final MemberRecord record = membershipTable.get(targetId);
+    if (record != null && record.status == Status.SUSPECTED) {
+      final long incarnation = record.incarnation;
+      membershipTable.markFailed(record, incarnation, false);
+      probeList.remove(targetId);
+      LOG.log(Level.INFO, "{0} is considered FAILED", memberIdToString(targetId));
+      metrics.failuresDeclared.increment();
+      changeTable.put(record, Status.FAILED, incarnation);
+      events.publish(MembershipEventType.FAILED, targetId, incarnation);
+      peerSeqTable.remove(targetId);
+      rttTable.remove(targetId);
     }
-    //The shuffle(List<?>) method is used to randomly permute the specified list using 
-    //a default source of randomness.
-    // for random pick
-    Collections.shuffle(ids);
-    return new ArrayDeque<>(ids);
   }
 
   static final class Builder {
     private int port = DEFAULT_PORT;
-    private InetSocketAddress introduerAddress;
+    private final List<InetSocketAddress> introduerAddresses = new ArrayList<>();
+    private boolean nativeTransport = false;
+    private double dropRate = 0.0D;
+    private Compression compression = Compression.NONE;
+    private InMemoryHub hub;
+    private Timer timer;
+    private Path snapshotPath;
+    private int virtualNodes = 0;
+    private GroupMultiplexer multiplexer;
+    private int group = 0;
+    private boolean exitOnCrash = true;
 
     private Builder() {
     }
@@ -295,19 +752,115 @@ will be disseminated through Change Table carried by ACK messages.
     }
 
     public Builder setIntroduerAddress(final InetSocketAddress address) {
-      this.introduerAddress = address;
+      return setIntroducerAddresses(Collections.singletonList(address));
+    }
+
+    /**
+     * Sets the seeds to join through. Any of them may answer.
+     */
+    public Builder setIntroducerAddresses(final List<InetSocketAddress> addresses) {
+      this.introduerAddresses.clear();
+      this.introduerAddresses.addAll(addresses);
+      return this;
+    }
+
+    public Builder setNativeTransport(final boolean nativeTransport) {
+      this.nativeTransport = nativeTransport;
+      return this;
+    }
+
+    public Builder setDropRate(final double dropRate) {
+      this.dropRate = dropRate;
+      return this;
+    }
+
+    /**
+     * Compresses large messages such as JOIN_ACK chunks. It does not apply to the in-memory hub.
+     */
+    public Builder setCompression(final Compression compression) {
+      this.compression = compression;
+      return this;
+    }
+
+    /**
+     * Runs the server over the in-memory hub instead of UDP sockets.
+     */
+    public Builder setInMemoryHub(final InMemoryHub hub) {
+      this.hub = hub;
+      return this;
+    }
+
+    /**
+     * Shares the given timer wheel for suspicions instead of creating one per server.
+     */
+    public Builder setTimer(final Timer timer) {
+      this.timer = timer;
+      return this;
+    }
+
+    /**
+     * Persists the membership table to the given file periodically and restores it on start.
+     * The generation of the member id is persisted next to it, so that a restart never reuses the id.
+     */
+    public Builder setSnapshotPath(final Path snapshotPath) {
+      this.snapshotPath = snapshotPath;
+      return this;
+    }
+
+    /**
+     * Maintains a consistent-hash ring over the live members with the given number of points per member.
+     * 0 disables it.
+     */
+    public Builder setHashRingVirtualNodes(final int virtualNodes) {
+      this.virtualNodes = virtualNodes;
+      return this;
+    }
+
+    /**
+     * Runs the server as the member of the given group on the socket, the event loop and the timer of the
+     * multiplexer, which is started first. The port is the one of the multiplexer.
+     * A CRASH message stops this server only, not the process, since the other groups run in it too.
+     */
+    public Builder setMultiplexer(final GroupMultiplexer multiplexer, final int group) {
+      this.multiplexer = multiplexer;
+      this.group = group;
+      return this;
+    }
+
+    /**
+     * Whether a CRASH message exits the process, true by default. If false, only this server stops sending and
+     * receiving, e.g., when other servers run in the same process.
+     */
+    public Builder setExitOnCrash(final boolean exitOnCrash) {
+      this.exitOnCrash = exitOnCrash;
       return this;
     }
 
     public Server build() {
+      final int serverPort = multiplexer == null ? port : multiplexer.getPort();
       // generate Id
       final Id newID = Id.newBuilder()
           .setHostname(getLocalhostAddress())
-          .setPort(port)
+          .setPort(serverPort)
           .setTs(System.currentTimeMillis())
           .build();
-      return new Server(newID, port, introduerAddress);
+      return new Server(newID, serverPort, new ArrayList<>(introduerAddresses), nativeTransport, dropRate,
+          compression, hub, timer == null && multiplexer != null ? multiplexer.getTimer() : timer, snapshotPath,
+          virtualNodes, multiplexer, group, exitOnCrash && multiplexer == null);
+    }
+  }
+
+  // a counter persisted with the snapshot, so that a restart always gets a new member id. without a snapshot,
+  // a random one, which is the same as the previous run's with a chance of 1 in 65536.
+  private static int nextGeneration(final MembershipSnapshot snapshot) {
+    if (snapshot != null) {
+      try {
+        return snapshot.nextGeneration();
+      } catch (final IOException e) {
+        LOG.log(Level.WARNING, "Failed to persist the generation. Use a random one", e);
+      }
     }
+    return ThreadLocalRandom.current().nextInt(1 << 16);
   }
 
   private static String getLocalhostAddress() {
@@ -0,0 +1,178 @@
+package edu.upenn.ds.team.mp2;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suspect table (ST) backed by a hashed timer wheel. The state of a suspicion lives on the {@link MemberRecord}.
+ * Each suspicion registers a deadline that is cancelled on refutation, so nothing scans the suspects periodically
+ * and a suspect is declared FAILED as soon as its deadline passes.
+ * Like the membership table, it is only used on the protocol thread. A deadline passing on the timer thread is
+ * handed to the protocol thread, which checks it is still the current one, so no lock is needed.
+ * The wheel may be shared by the members running in one process.
+ * The deadline shrinks as other members independently confirm the suspicion (Lifeguard): it starts at
+ * maxMult * min, at most maxTimeoutMs, and goes down to min = suspicionMult * log10(N) rounds after
+ * expectedConfirmations confirmations. The member's own probes of a suspect count as confirmations too.
+ */
+final class SuspicionTimer {
+
+  private static final long TICK_MS = 10;
+
+  /**
+   * Called on the protocol thread when a suspicion has not been refuted in time.
+   */
+  interface Listener {
+    void onSuspicionTimeout(long memberId);
+  }
+
+  private final Timer timer;
+  private final long periodMs;
+  private final int suspicionMult;
+  private final int maxMult;
+  private final long maxTimeoutMs;
+  private final int expectedConfirmations;
+  // the membership table, to get N for the timeout and the suspects to cancel on stop
+  private final MembershipTable membershipTable;
+  private final Listener listener;
+  // runs the expiries on the protocol thread
+  private final Executor protocolExecutor;
+  private volatile boolean stopped = false;
+
+  SuspicionTimer(final Timer timer, final long periodMs, final int suspicionMult, final int maxMult,
+                 final long maxTimeoutMs, final int expectedConfirmations, final MembershipTable membershipTable,
+                 final Listener listener, final Executor protocolExecutor) {
+    this.timer = timer;
+    this.periodMs = periodMs;
+    this.suspicionMult = suspicionMult;
+    this.maxMult = maxMult;
+    this.maxTimeoutMs = maxTimeoutMs;
+    this.expectedConfirmations = expectedConfirmations;
+    this.membershipTable = membershipTable;
+    this.listener = listener;
+    this.protocolExecutor = protocolExecutor;
+  }
+
+  /**
+   * @return a new timer wheel running on a daemon thread
+   */
+  static HashedWheelTimer newTimer() {
+    return new HashedWheelTimer(new DefaultThreadFactory("suspicion-timer", true), TICK_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts suspecting the member.
+   * @param sourceId the member that suspects it first. it is not counted as a confirmation.
+   * @return true if it is suspected for the first time
+   */
+  boolean suspect(final MemberRecord record, final long sourceId) {
+    final long minTimeoutMs = (long) (suspicionMult * Math.max(1.0D, Math.log10(membershipTable.size())) * periodMs);
+    if (record.suspicionSources != null) {
+      return false; // someone suspects it before
+    }
+    record.suspicionSources = new HashSet<>();
+    record.suspicionSources.add(sourceId);
+    record.suspectedAt = System.nanoTime();
+    record.minSuspicionMs = minTimeoutMs;
+    // without confirmations it takes no longer than maxTimeoutMs, unless the minimum is already longer
+    record.maxSuspicionMs = Math.max(minTimeoutMs, Math.min(maxMult * minTimeoutMs, maxTimeoutMs));
+    schedule(record);
+    return true;
+  }
+
+  /**
+   * Counts another member suspecting the member, or a failed probe of ours, and shortens the deadline.
+   * @return true if it is a new confirmation of a current suspicion
+   */
+  boolean confirm(final MemberRecord record, final long sourceId) {
+    final Set<Long> sources = record.suspicionSources;
+    if (sources == null || sources.size() > expectedConfirmations || !sources.add(sourceId)) {
+      return false; // not suspected, already at the minimum, or confirmed by the same member before
+    }
+    schedule(record);
+    return true;
+  }
+
+  /**
+   * Stops suspecting the member, because it is alive or already removed.
+   * @return true if it was suspected
+   */
+  boolean refute(final MemberRecord record) {
+    if (record.suspicionSources == null) {
+      return false;
+    }
+    end(record);
+    return true;
+  }
+
+  boolean isSuspected(final MemberRecord record) {
+    return record.suspicionSources != null;
+  }
+
+  // cancels the pending deadlines, from any thread. the timer itself is stopped by its owner.
+  // an expiry already handed to the protocol thread is ignored.
+  void stop() {
+    stopped = true;
+    for (final MemberRecord record : membershipTable.records()) {
+      final Timeout timeout = record.suspicionTimeout;
+      if (timeout != null) {
+        timeout.cancel();
+      }
+    }
+  }
+
+  private void schedule(final MemberRecord record) {
+    if (record.suspicionTimeout != null) {
+      record.suspicionTimeout.cancel();
+    }
+    final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - record.suspectedAt);
+    record.suspicionTimeout = timer.newTimeout(new Expiry(record), Math.max(0L, getTimeoutMs(record) - elapsedMs),
+        TimeUnit.MILLISECONDS);
+  }
+
+  private static void end(final MemberRecord record) {
+    if (record.suspicionTimeout != null) {
+      record.suspicionTimeout.cancel();
+    }
+    record.suspicionTimeout = null;
+    record.suspicionSources = null;
+  }
+
+  // max - (max - min) * log(C + 1) / log(K + 1) for C confirmations out of K expected
+  private long getTimeoutMs(final MemberRecord record) {
+    final int confirmations = Math.min(record.suspicionSources.size() - 1, expectedConfirmations);
+    final double fraction = Math.log(confirmations + 1) / Math.log(expectedConfirmations + 1);
+    return Math.max(record.minSuspicionMs,
+        (long) (record.maxSuspicionMs - (record.maxSuspicionMs - record.minSuspicionMs) * fraction));
+  }
+
+  private final class Expiry implements TimerTask {
+    private final MemberRecord record;
+
+    private Expiry(final MemberRecord record) {
+      this.record = record;
+    }
+
+    // on the timer thread
+    @Override
+    public void run(final Timeout t) {
+      protocolExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (stopped || t != record.suspicionTimeout) {
+            return; // refuted, or rescheduled by a confirmation
+          }
+          end(record);
+          listener.onSuspicionTimeout(record.memberId);
+        }
+      });
+    }
+  }
+}
@@ -1,6 +1,9 @@
 package edu.upenn.ds.team.mp2;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 
 /**
  * Utility class
@@ -22,4 +25,44 @@ getAddress(),getHostName(),getPort()
 */
     return new InetSocketAddress(id.getHostname().toString(), id.getPort());
   }
+
+  /**
+   * Packs an {@link Id} into a member id used on the wire and as the key of the tables.
+   * Layout: IPv4 address (32 bits) | port (16 bits) | generation (low 16 bits).
+   * The generation tells a restarted server apart from its previous runs.
+   */
+  public static long toMemberId(final Id id, final int generation) {
+    final InetAddress address;
+    try {
+      // the hostname is a literal IPv4 address, so this does not look up any name service
+      address = InetAddress.getByName(id.getHostname().toString());
+    } catch (final UnknownHostException e) {
+      throw new IllegalArgumentException("Invalid hostname " + id.getHostname(), e);
+    }
+    if (!(address instanceof Inet4Address)) {
+      throw new IllegalArgumentException("Only IPv4 addresses are supported: " + id.getHostname());
+    }
+    final byte[] ip = address.getAddress();
+    final long packedIp = ((ip[0] & 0xFFL) << 24) | ((ip[1] & 0xFFL) << 16) | ((ip[2] & 0xFFL) << 8) | (ip[3] & 0xFFL);
+    return (packedIp << 32) | ((id.getPort() & 0xFFFFL) << 16) | (generation & 0xFFFFL);
+  }
+
+  public static InetSocketAddress getAddressFromMemberId(final long memberId) {
+    final int ip = (int) (memberId >>> 32);
+    final byte[] bytes = new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+    try {
+      return new InetSocketAddress(InetAddress.getByAddress(bytes), (int) ((memberId >>> 16) & 0xFFFF));
+    } catch (final UnknownHostException e) {
+      // never happens for a 4-byte address
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * @return a readable form of a member id, i.e., [IP]:[PORT]#[generation]
+   */
+  public static String memberIdToString(final long memberId) {
+    return ((memberId >>> 56) & 0xFF) + "." + ((memberId >>> 48) & 0xFF) + "." + ((memberId >>> 40) & 0xFF) + "."
+        + ((memberId >>> 32) & 0xFF) + ":" + ((memberId >>> 16) & 0xFFFF) + "#" + (memberId & 0xFFFF);
+  }
 }
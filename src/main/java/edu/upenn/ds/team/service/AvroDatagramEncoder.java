@@ -0,0 +1,70 @@
+package edu.upenn.ds.team.mp2.service;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.AddressedEnvelope;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Handler for encoding an addressed avro object into a {@link DatagramPacket},
+ * so that one unconnected channel can send to any peer.
+ */
+public class AvroDatagramEncoder<T> extends MessageToMessageEncoder<AddressedEnvelope<Object, InetSocketAddress>> {
+
+  private final Class<T> targetClass;
+  private final TrafficRecorder recorder;
+  private final FrameCodec codec;
+
+  public AvroDatagramEncoder(final Class<T> targetClass) {
+    this(targetClass, null);
+  }
+
+  public AvroDatagramEncoder(final Class<T> targetClass, final TrafficRecorder recorder) {
+    this(targetClass, recorder, Compression.NONE, 0);
+  }
+
+  /**
+   * @param thresholdBytes payloads smaller than this are not compressed
+   */
+  public AvroDatagramEncoder(final Class<T> targetClass, final TrafficRecorder recorder,
+                             final Compression compression, final int thresholdBytes) {
+    this.targetClass = targetClass;
+    this.recorder = recorder;
+    this.codec = new FrameCodec(compression, thresholdBytes);
+  }
+
+  @Override
+  public boolean acceptOutboundMessage(final Object msg) throws Exception {
+    if (!super.acceptOutboundMessage(msg)) {
+      return false;
+    }
+    final AddressedEnvelope<?, ?> envelope = (AddressedEnvelope<?, ?>) msg;
+    return targetClass.isInstance(envelope.content()) && envelope.recipient() instanceof InetSocketAddress;
+  }
+
+  @Override
+  protected void encode(final ChannelHandlerContext ctx, final AddressedEnvelope<Object, InetSocketAddress> envelope,
+                        final List<Object> out) throws Exception {
+    final ByteBuf buf = ctx.alloc().ioBuffer();
+    try {
+      final int bytes = codec.encode(targetClass.cast(envelope.content()), targetClass, buf);
+      if (recorder != null) {
+        recorder.onOutbound(envelope.content(), bytes);
+      }
+    } catch (final Exception e) {
+      buf.release();
+      throw e;
+    }
+    out.add(new DatagramPacket(buf, envelope.recipient(), envelope.sender()));
+  }
+
+  @Override
+  public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+    codec.release();
+    super.handlerRemoved(ctx);
+  }
+}
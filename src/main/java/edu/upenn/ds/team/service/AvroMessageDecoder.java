@@ -1,44 +1,95 @@
 package edu.upenn.ds.team.mp2.service;
 
-import edu.upenn.ds.team.utils.AvroUtils;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageCodec;
-import io.netty.handler.codec.ByteToMessageDecoder;
-import io.netty.handler.codec.MessageToByteEncoder;
 import io.netty.handler.codec.MessageToMessageDecoder;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * Handler for decode bytes into an avro object
+ * Handler for decode bytes into avro objects.
+ * A buffer may hold several length-prefixed frames, e.g., a datagram packed by {@link DatagramCoalescer}.
+ * Frames are decompressed as their header says.
+ * A frame that cannot be decoded drops the rest of the buffer, so that junk or a peer speaking another format
+ * does not close the channel. The frames decoded before it are still handed out.
  */
 public class AvroMessageDecoder<T> extends MessageToMessageDecoder<ByteBuf> {
 
+  private static final Logger LOG = Logger.getLogger(AvroMessageDecoder.class.getName());
+
   private final Class<T> targetClass;
+  private final boolean reuseInstance;
+  private final TrafficRecorder recorder;
+  private final FrameCodec codec = new FrameCodec(Compression.NONE, 0);
+  // the instances handed out last time, one per frame position in a buffer.
+  // A decoder belongs to one channel, so they are touched by one thread only.
+  private final List<T> reusables = new ArrayList<>();
+
+  public AvroMessageDecoder(final Class<T> targetClass) {
+    this(targetClass, false, null);
+  }
+
+  /**
+   * @param reuseInstance if true, the same decoded instances are overwritten for every buffer.
+   *                      Handlers must then finish with a message before returning and must not keep
+   *                      references to it or to any of its nested records.
+   */
+  public AvroMessageDecoder(final Class<T> targetClass, final boolean reuseInstance) {
+    this(targetClass, reuseInstance, null);
+  }
 
-  AvroMessageDecoder(final Class<T> targetClass) {
+  public AvroMessageDecoder(final Class<T> targetClass, final boolean reuseInstance,
+                            final TrafficRecorder recorder) {
     this.targetClass = targetClass;
+    this.reuseInstance = reuseInstance;
+    this.recorder = recorder;
   }
 
   @Override
   protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
-    if (in.readableBytes() < 4) {
-      return;
-    }
+    int position = 0;
+    while (in.readableBytes() >= 4) {
+      in.markReaderIndex();
 
-    in.markReaderIndex();
+      final int length = in.readInt();
+      if (length < 0 || in.readableBytes() < length) {
+        in.resetReaderIndex();
+        return;
+      }
 
-    final int length = in.readInt();
-    if (in.readableBytes() < length) {
-      in.resetReaderIndex();
-      return;
+      // decodes straight from the inbound buffer without copying an uncompressed payload.
+      // the frames of one buffer are all handed out together, so each position has its own instance.
+      final T reusable = reuseInstance && position < reusables.size() ? reusables.get(position) : null;
+      final T decoded;
+      try {
+        decoded = codec.decode(in, length, targetClass, reusable, ctx.alloc());
+      } catch (final Exception e) {
+        in.resetReaderIndex();
+        final int dropped = in.readableBytes();
+        in.skipBytes(dropped);
+        if (recorder != null) {
+          recorder.onCorrupted(dropped);
+        }
+        LOG.log(Level.FINE, "Drop " + dropped + " bytes that cannot be decoded from " + ctx.channel(), e);
+        return;
+      }
+      if (reuseInstance && reusable == null) {
+        reusables.add(decoded);
+      }
+      if (recorder != null) {
+        recorder.onInbound(decoded, length + 4);
+      }
+      out.add(decoded);
+      ++position;
     }
+  }
 
-    final byte[] decoded = new byte[length];
-    in.readBytes(decoded);
-
-    out.add(AvroUtils.deserialize(decoded, targetClass));
+  @Override
+  public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+    codec.release();
+    super.handlerRemoved(ctx);
   }
 }
@@ -1,36 +1,53 @@
 package edu.upenn.ds.team.mp2.service;
 
-import edu.upenn.ds.team.mp2.Message;
-import edu.upenn.ds.team.utils.AvroUtils;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
-import java.io.ObjectOutputStream;
-
 /**
  * Handler for encoding bytes to an avro object
  */
 public class AvroMessageEncoder<T> extends MessageToByteEncoder<Object> {
 
-  private static final byte[] LENGTH_PLACEHOLDER = new byte[4];
   private final Class<T> targetClass;
+  private final TrafficRecorder recorder;
+  private final FrameCodec codec;
 
   public AvroMessageEncoder(final Class<T> targetClass) {
+    this(targetClass, null);
+  }
+
+  public AvroMessageEncoder(final Class<T> targetClass, final TrafficRecorder recorder) {
+    this(targetClass, recorder, Compression.NONE, 0);
+  }
+
+  /**
+   * @param thresholdBytes payloads smaller than this are not compressed
+   */
+  public AvroMessageEncoder(final Class<T> targetClass, final TrafficRecorder recorder,
+                            final Compression compression, final int thresholdBytes) {
     this.targetClass = targetClass;
+    this.recorder = recorder;
+    this.codec = new FrameCodec(compression, thresholdBytes);
   }
 
   @Override
-  protected void encode(final ChannelHandlerContext channelHandlerContext, final Object msg, final ByteBuf out) throws Exception {
-    int startIdx = out.writerIndex();
-
-    ByteBufOutputStream bout = new ByteBufOutputStream(out);
-    bout.write(LENGTH_PLACEHOLDER);
-    bout.write(AvroUtils.serialize(targetClass.cast(msg), targetClass));
+  public boolean acceptOutboundMessage(final Object msg) {
+    // leaves addressed envelopes to the datagram encoder
+    return targetClass.isInstance(msg);
+  }
 
-    int endIdx = out.writerIndex();
+  @Override
+  protected void encode(final ChannelHandlerContext channelHandlerContext, final Object msg, final ByteBuf out) throws Exception {
+    final int bytes = codec.encode(targetClass.cast(msg), targetClass, out);
+    if (recorder != null) {
+      recorder.onOutbound(msg, bytes);
+    }
+  }
 
-    out.setInt(startIdx, endIdx - startIdx - 4);
+  @Override
+  public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+    codec.release();
+    super.handlerRemoved(ctx);
   }
 }
@@ -0,0 +1,36 @@
+package edu.upenn.ds.team.mp2.service;
+
+/**
+ * Payload compression of a frame. The id is written in the frame header, so receivers decode any of them
+ * whatever the sender is configured with.
+ */
+public enum Compression {
+  // no compression
+  NONE(0),
+  // Snappy. Fast, for LAN traffic.
+  SNAPPY(1),
+  // zlib deflate. Denser but slower, for cross-datacenter traffic.
+  DEFLATE(2);
+
+  private final byte id;
+
+  Compression(final int id) {
+    this.id = (byte) id;
+  }
+
+  byte getId() {
+    return id;
+  }
+
+  /**
+   * @return the compression with the given id, or null if unknown
+   */
+  static Compression fromId(final byte id) {
+    for (final Compression compression : values()) {
+      if (compression.id == id) {
+        return compression;
+      }
+    }
+    return null;
+  }
+}
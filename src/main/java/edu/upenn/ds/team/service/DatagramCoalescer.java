@@ -0,0 +1,139 @@
+package edu.upenn.ds.team.mp2.service;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Handler for packing the datagrams written to the same peer between two flushes into one datagram,
+ * up to a size budget below the MTU. It works because every frame carries its own length prefix,
+ * and {@link AvroMessageDecoder} reads all the frames of a datagram.
+ * The datagrams to one peer leave in the order they are written.
+ * It must be the outbound handler closest to the socket.
+ */
+public final class DatagramCoalescer extends ChannelOutboundHandlerAdapter {
+
+  private final int budgetBytes;
+  // pending datagrams by recipient, in the order of their first write. touched by the event loop only.
+  private final LinkedHashMap<InetSocketAddress, Batch> batches = new LinkedHashMap<>();
+
+  public DatagramCoalescer(final int budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  @Override
+  public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+    if (!(msg instanceof DatagramPacket)) {
+      ctx.write(msg, promise);
+      return;
+    }
+    final DatagramPacket packet = (DatagramPacket) msg;
+    final InetSocketAddress recipient = packet.recipient();
+    final int size = packet.content().readableBytes();
+    if (recipient == null) {
+      ctx.write(msg, promise);
+      return;
+    }
+    if (size >= budgetBytes) {
+      // too large to pack. what is pending for the recipient leaves first, so its messages stay in order.
+      final Batch pending = batches.remove(recipient);
+      if (pending != null) {
+        pending.write(ctx);
+      }
+      ctx.write(msg, promise);
+      return;
+    }
+
+    Batch batch = batches.get(recipient);
+    if (batch != null && batch.buf.readableBytes() + size > budgetBytes) {
+      // does not fit. the pending one leaves first, without a flush.
+      batches.remove(recipient);
+      batch.write(ctx);
+      batch = null;
+    }
+    if (batch == null) {
+      batch = new Batch(ctx.alloc().ioBuffer(budgetBytes), recipient, packet.sender());
+      batches.put(recipient, batch);
+    }
+    batch.buf.writeBytes(packet.content());
+    batch.promises.add(promise);
+    packet.release();
+  }
+
+  @Override
+  public void flush(final ChannelHandlerContext ctx) {
+    writeAll(ctx);
+    ctx.flush();
+  }
+
+  @Override
+  public void close(final ChannelHandlerContext ctx, final ChannelPromise promise) {
+    writeAll(ctx);
+    ctx.close(promise);
+  }
+
+  @Override
+  public void handlerRemoved(final ChannelHandlerContext ctx) {
+    for (final Batch batch : batches.values()) {
+      batch.buf.release();
+      for (final ChannelPromise promise : batch.promises) {
+        promise.tryFailure(new IllegalStateException("Handler is removed"));
+      }
+    }
+    batches.clear();
+  }
+
+  private void writeAll(final ChannelHandlerContext ctx) {
+    final Iterator<Batch> it = batches.values().iterator();
+    while (it.hasNext()) {
+      final Batch batch = it.next();
+      it.remove();
+      batch.write(ctx);
+    }
+  }
+
+  /**
+   * Frames for one peer, and the promises of the writes that produced them.
+   */
+  private static final class Batch {
+    private final ByteBuf buf;
+    private final InetSocketAddress recipient;
+    private final InetSocketAddress sender;
+    private final List<ChannelPromise> promises = new ArrayList<>(2);
+
+    private Batch(final ByteBuf buf, final InetSocketAddress recipient, final InetSocketAddress sender) {
+      this.buf = buf;
+      this.recipient = recipient;
+      this.sender = sender;
+    }
+
+    private void write(final ChannelHandlerContext ctx) {
+      if (promises.size() == 1) {
+        ctx.write(new DatagramPacket(buf, recipient, sender), promises.get(0));
+        return;
+      }
+      ctx.write(new DatagramPacket(buf, recipient, sender)).addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+          for (final ChannelPromise promise : promises) {
+            if (future.isSuccess()) {
+              promise.trySuccess();
+            } else {
+              promise.tryFailure(future.cause());
+            }
+          }
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package edu.upenn.ds.team.mp2.service;
+
+import edu.upenn.ds.team.utils.AvroUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.compression.Snappy;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the frames of avro objects: a 4-byte length, a 1-byte {@link Compression} id and the payload.
+ * A payload of at least {@code thresholdBytes} is compressed if that makes it smaller, so small PINGs skip it.
+ * It keeps compressor state, so an instance belongs to one handler and is touched by one thread only.
+ */
+final class FrameCodec {
+
+  // upper bound of a decompressed payload, against malformed or malicious frames
+  private static final int MAX_PAYLOAD_BYTES = 1 << 20;
+
+  private final Compression compression;
+  private final int thresholdBytes;
+  // created on first use
+  private Snappy snappy;
+  private Deflater deflater;
+  private Inflater inflater;
+  private byte[] scratch = new byte[0];
+
+  FrameCodec(final Compression compression, final int thresholdBytes) {
+    this.compression = compression;
+    this.thresholdBytes = thresholdBytes;
+  }
+
+  /**
+   * Writes a frame of the given object.
+   * @return the size of the frame
+   */
+  <T> int encode(final T msg, final Class<T> targetClass, final ByteBuf out) throws Exception {
+    final int startIdx = out.writerIndex();
+
+    out.writeInt(0); // length placeholder
+    out.writeByte(Compression.NONE.getId());
+    final int payloadIdx = out.writerIndex();
+    // encodes straight into the pooled outbound buffer
+    AvroUtils.serialize(msg, targetClass, out);
+
+    final int payloadLength = out.writerIndex() - payloadIdx;
+    if (compression != Compression.NONE && payloadLength >= thresholdBytes) {
+      compress(out, payloadIdx, payloadLength);
+    }
+
+    final int endIdx = out.writerIndex();
+    out.setInt(startIdx, endIdx - startIdx - 4);
+    return endIdx - startIdx;
+  }
+
+  /**
+   * Decodes an object from the next {@code length} readable bytes of a frame, right after its length.
+   * An uncompressed payload is decoded in place.
+   */
+  <T> T decode(final ByteBuf in, final int length, final Class<T> targetClass, final T reuse,
+               final ByteBufAllocator alloc) throws Exception {
+    if (length < 1) {
+      throw new CorruptedFrameException("Frame without a header: " + length);
+    }
+    final Compression frameCompression = Compression.fromId(in.readByte());
+    if (frameCompression == null) {
+      throw new CorruptedFrameException("Unknown compression");
+    }
+    if (frameCompression == Compression.NONE) {
+      return AvroUtils.deserialize(in, length - 1, targetClass, reuse);
+    }
+
+    final ByteBuf payload = alloc.heapBuffer(Math.min(256, MAX_PAYLOAD_BYTES), MAX_PAYLOAD_BYTES);
+    try {
+      decompress(frameCompression, in.readSlice(length - 1), payload);
+      return AvroUtils.deserialize(payload, payload.readableBytes(), targetClass, reuse);
+    } finally {
+      payload.release();
+    }
+  }
+
+  // frees the native memory of the zlib streams
+  void release() {
+    if (deflater != null) {
+      deflater.end();
+      deflater = null;
+    }
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+  }
+
+  // replaces the payload with its compressed form, unless that does not save anything
+  private void compress(final ByteBuf out, final int payloadIdx, final int payloadLength) throws Exception {
+    final ByteBuf compressed = out.alloc().heapBuffer(payloadLength);
+    try {
+      if (compression == Compression.SNAPPY) {
+        if (snappy == null) {
+          snappy = new Snappy();
+        }
+        snappy.reset();
+        snappy.encode(out.slice(payloadIdx, payloadLength), compressed, payloadLength);
+      } else {
+        if (deflater == null) {
+          deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        }
+        deflater.reset();
+        final byte[] input = getScratch(payloadLength);
+        out.getBytes(payloadIdx, input, 0, payloadLength);
+        deflater.setInput(input, 0, payloadLength);
+        deflater.finish();
+        compressed.writeInt(payloadLength); // for the inflater to size its output
+        while (!deflater.finished() && compressed.readableBytes() < payloadLength) {
+          compressed.ensureWritable(64);
+          final int n = deflater.deflate(compressed.array(), compressed.arrayOffset() + compressed.writerIndex(),
+              compressed.writableBytes());
+          compressed.writerIndex(compressed.writerIndex() + n);
+        }
+      }
+      if (compressed.readableBytes() < payloadLength) {
+        out.writerIndex(payloadIdx);
+        out.writeBytes(compressed);
+        out.setByte(payloadIdx - 1, compression.getId());
+      }
+    } finally {
+      compressed.release();
+    }
+  }
+
+  private void decompress(final Compression frameCompression, final ByteBuf in, final ByteBuf out)
+      throws Exception {
+    if (frameCompression == Compression.SNAPPY) {
+      if (snappy == null) {
+        snappy = new Snappy();
+      }
+      snappy.reset();
+      snappy.decode(in, out);
+      return;
+    }
+
+    final int payloadLength = in.readInt();
+    if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_BYTES) {
+      throw new CorruptedFrameException("Invalid payload length: " + payloadLength);
+    }
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    inflater.reset();
+    final int compressedLength = in.readableBytes();
+    final byte[] input = getScratch(compressedLength);
+    in.readBytes(input, 0, compressedLength);
+    inflater.setInput(input, 0, compressedLength);
+    out.ensureWritable(payloadLength);
+    try {
+      final int n = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), payloadLength);
+      if (n != payloadLength || !inflater.finished()) {
+        throw new CorruptedFrameException("Truncated payload: " + n + " of " + payloadLength + " bytes");
+      }
+      out.writerIndex(out.writerIndex() + n);
+    } catch (final DataFormatException e) {
+      throw new CorruptedFrameException(e);
+    }
+  }
+
+  private byte[] getScratch(final int size) {
+    if (scratch.length < size) {
+      scratch = new byte[Math.max(size, scratch.length * 2)];
+    }
+    return scratch;
+  }
+}
@@ -0,0 +1,46 @@
+package edu.upenn.ds.team.mp2.service;
+
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Switchboard for {@link InMemoryTransport}s in one process.
+ * All the transports live on one host, so they are told apart by port. They share a small event loop group,
+ * so thousands of members do not need thousands of threads.
+ */
+public final class InMemoryHub {
+
+  private final EventLoopGroup group;
+  private final ConcurrentHashMap<Integer, InMemoryTransport> transports = new ConcurrentHashMap<>();
+
+  public InMemoryHub(final int threadNum) {
+    this.group = new DefaultEventLoopGroup(threadNum);
+  }
+
+  EventLoop nextEventLoop() {
+    return group.next();
+  }
+
+  boolean register(final int port, final InMemoryTransport transport) {
+    return transports.putIfAbsent(port, transport) == null;
+  }
+
+  void unregister(final int port, final InMemoryTransport transport) {
+    transports.remove(port, transport);
+  }
+
+  InMemoryTransport get(final int port) {
+    return transports.get(port);
+  }
+
+  public int size() {
+    return transports.size();
+  }
+
+  public void shutdownGracefully() {
+    group.shutdownGracefully();
+  }
+}
@@ -0,0 +1,139 @@
+package edu.upenn.ds.team.mp2.service;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport delivering message objects to other transports of the same {@link InMemoryHub}.
+ * Nothing is serialized. Messages are passed by reference, so neither side may modify one after sending it.
+ */
+public final class InMemoryTransport implements Transport {
+
+  private static final Logger LOG = Logger.getLogger(InMemoryTransport.class.getName());
+
+  /**
+   * Called on the event loop of the transport for every delivered message.
+   */
+  public interface Receiver {
+    void receive(Object msg);
+  }
+
+  private final InMemoryHub hub;
+  private final Receiver receiver;
+  private final EventLoop eventLoop;
+  private final Promise<Void> closePromise;
+  private volatile int port = -1;
+  private volatile double dropRate = 0.0D;
+  private final AtomicLong sendFailures = new AtomicLong();
+  private final AtomicLong droppedMessages = new AtomicLong();
+
+  public InMemoryTransport(final InMemoryHub hub, final Receiver receiver) {
+    this.hub = hub;
+    this.receiver = receiver;
+    this.eventLoop = hub.nextEventLoop();
+    this.closePromise = eventLoop.newPromise();
+  }
+
+  @Override
+  public boolean start(final int port) {
+    if (!hub.register(port, this)) {
+      LOG.log(Level.WARNING, "Port {0} is already in use", port);
+      return false;
+    }
+    this.port = port;
+    return true;
+  }
+
+  @Override
+  public Future<Void> sendAsync(final InetSocketAddress address, final Object obj) {
+    return sendAsync(address, obj, null);
+  }
+
+  @Override
+  public Future<Void> sendAsync(final InetSocketAddress address, final Object obj,
+                                final GenericFutureListener<? extends Future<? super Void>> listener) {
+    final Future<Void> future;
+    final InMemoryTransport destination = address == null ? null : hub.get(address.getPort());
+    if (ThreadLocalRandom.current().nextDouble() < dropRate) {
+      droppedMessages.incrementAndGet();
+      future = ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+    } else if (destination == null || obj == null) {
+      // like a datagram to a closed port, nobody notices
+      sendFailures.incrementAndGet();
+      future = ImmediateEventExecutor.INSTANCE.newFailedFuture(
+          new IllegalArgumentException("No transport at " + address));
+    } else {
+      destination.deliver(obj);
+      future = ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+    }
+    if (listener != null) {
+      future.addListener(listener);
+    }
+    return future;
+  }
+
+  private void deliver(final Object obj) {
+    eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          receiver.receive(obj);
+        } catch (final Exception e) {
+          LOG.log(Level.FINER, "Exception is thrown while handling a message", e);
+        }
+      }
+    });
+  }
+
+  // every message is delivered as its own task, so nothing is held back
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public EventLoop getEventLoop() {
+    return eventLoop;
+  }
+
+  @Override
+  public boolean stop() {
+    if (port < 0) {
+      return false;
+    }
+    hub.unregister(port, this);
+    closePromise.trySuccess(null);
+    return true;
+  }
+
+  @Override
+  public boolean waitForClose() {
+    if (port < 0) {
+      return false;
+    }
+    return closePromise.awaitUninterruptibly().isSuccess();
+  }
+
+  @Override
+  public void setDropRate(final double dropRate) {
+    this.dropRate = dropRate;
+  }
+
+  @Override
+  public long getSendFailureCount() {
+    return sendFailures.get();
+  }
+
+  @Override
+  public long getDroppedMessageCount() {
+    return droppedMessages.get();
+  }
+}
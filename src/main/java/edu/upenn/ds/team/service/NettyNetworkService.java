@@ -2,17 +2,27 @@ package edu.upenn.ds.team.mp2.service;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.handler.codec.DatagramPacketDecoder;
 import io.netty.handler.codec.DatagramPacketEncoder;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,7 +31,7 @@ import java.util.logging.Logger;
  * Use UDP/IP
  * Caution: thread unsafe.
  */
-public final class NettyNetworkService {
+public final class NettyNetworkService implements Transport {
 
   private static final Logger LOG = Logger.getLogger(NettyNetworkService.class.getName());
 
@@ -29,15 +39,46 @@ public final class NettyNetworkService {
   private final Bootstrap clientBootstrap;
   private final EventLoopGroup serverGroup;
   private final Bootstrap serverBootstrap;
-  private Channel channel;
+  private volatile Channel channel;
+  // all bound server channels. More than one only with native epoll and SO_REUSEPORT.
+  private volatile List<Channel> channels = Collections.emptyList();
+  // one per bound channel, in the same order
+  private volatile List<Flusher> flushers = Collections.emptyList();
+  private final int bindCount;
+  // if true, all outbound messages go through the bound server channel as addressed datagrams
+  private final boolean sharedSocket;
+  // if positive, writes through the bound channels are flushed once per event-loop tick
+  // and packed into datagrams of up to this many bytes per peer
+  private final int coalesceBudget;
   private final ConcurrentHashMap<InetSocketAddress, Channel> outChannels = new ConcurrentHashMap<>();
-  public static volatile double dropRate = 0.0D;
+  private volatile double dropRate;
   private final Random random = new Random();
+  private final AtomicLong sendFailures = new AtomicLong();
+  private final AtomicLong droppedMessages = new AtomicLong();
+  private final ChannelFutureListener failureCounter = new ChannelFutureListener() {
+    @Override
+    public void operationComplete(final ChannelFuture future) {
+      if (!future.isSuccess()) {
+        sendFailures.incrementAndGet();
+      }
+    }
+  };
 
   private NettyNetworkService(final List<ChannelHandlerFactory> serverHandlerFactories,
                               final List<ChannelHandlerFactory> clientHandlerFactories,
                               final int serverGroupNum,
-                              final Class<? extends Object> targetClass) {
+                              final Class<? extends Object> targetClass,
+                              final boolean reuseDecodedMessages,
+                              final boolean sharedSocket,
+                              final boolean nativeTransport,
+                              final double dropRate,
+                              final TrafficRecorder recorder,
+                              final int coalesceBudget,
+                              final Compression compression,
+                              final int compressionThreshold) {
+    this.sharedSocket = sharedSocket;
+    this.coalesceBudget = coalesceBudget;
+    this.dropRate = dropRate;
     this.clientWorkerGroup = new NioEventLoopGroup();
     this.clientBootstrap = new Bootstrap()
         .group(clientWorkerGroup)
@@ -47,24 +88,50 @@ public final class NettyNetworkService {
           protected void initChannel(DatagramChannel datagramChannel) throws Exception {
             final ChannelPipeline pipeline = datagramChannel.pipeline();
             pipeline.addLast("udpEncoder", new DatagramPacketEncoder<>(new DummyEncoder()));
-            pipeline.addLast("encoder", new AvroMessageEncoder<>(targetClass));
+            pipeline.addLast("encoder",
+                new AvroMessageEncoder<>(targetClass, recorder, compression, compressionThreshold));
             for (int i = 0; i < clientHandlerFactories.size(); ++i) {
               pipeline.addLast("handler" + i, clientHandlerFactories.get(i).newInstance());
             }
           }
         });
 
-    this.serverGroup = new NioEventLoopGroup(serverGroupNum);
-    this.serverBootstrap = new Bootstrap()
-        .group(serverGroup)
-        .channel(NioDatagramChannel.class)
+    final boolean useEpoll = nativeTransport && Epoll.isAvailable();
+    if (nativeTransport && !useEpoll) {
+      LOG.log(Level.WARNING, "Native epoll transport is unavailable. Falls back to NIO.",
+          Epoll.unavailabilityCause());
+    }
+    if (useEpoll) {
+      // one socket per event loop. The kernel spreads inbound datagrams across them.
+      this.serverGroup = new EpollEventLoopGroup(serverGroupNum);
+      this.serverBootstrap = new Bootstrap()
+          .group(serverGroup)
+          .channel(EpollDatagramChannel.class)
+          .option(EpollChannelOption.SO_REUSEPORT, true);
+      this.bindCount = serverGroupNum;
+    } else {
+      this.serverGroup = new NioEventLoopGroup(serverGroupNum);
+      this.serverBootstrap = new Bootstrap()
+          .group(serverGroup)
+          .channel(NioDatagramChannel.class);
+      this.bindCount = 1;
+    }
+    this.serverBootstrap
         .handler(new ChannelInitializer<DatagramChannel>() {
           @Override
           protected void initChannel(DatagramChannel datagramChannel) throws Exception {
             final ChannelPipeline pipeline = datagramChannel.pipeline();
-            pipeline.addLast("decoder", new DatagramPacketDecoder(new AvroMessageDecoder<>(targetClass)));
+            if (coalesceBudget > 0) {
+              // closest to the socket, so that it sees the datagrams of every encoder
+              pipeline.addLast("coalescer", new DatagramCoalescer(coalesceBudget));
+            }
+            pipeline.addLast("decoder", new DatagramPacketDecoder(
+                new AvroMessageDecoder<>(targetClass, reuseDecodedMessages, recorder)));
             pipeline.addLast("udpEncoder", new DatagramPacketEncoder<>(new DummyEncoder()));
-            pipeline.addLast("encoder", new AvroMessageEncoder<>(targetClass));
+            pipeline.addLast("encoder",
+                new AvroMessageEncoder<>(targetClass, recorder, compression, compressionThreshold));
+            pipeline.addLast("datagramEncoder",
+                new AvroDatagramEncoder<>(targetClass, recorder, compression, compressionThreshold));
             for (int i = 0; i < serverHandlerFactories.size(); ++i) {
               pipeline.addLast("handler" + i, serverHandlerFactories.get(i).newInstance());
             }
@@ -81,6 +148,9 @@ public final class NettyNetworkService {
   }
 
   public boolean send(final InetSocketAddress address, final Object obj) {
+    if (sharedSocket) {
+      return sendAsync(address, obj).awaitUninterruptibly().isSuccess();
+    }
 
     final Channel channel = open(address);
     if (channel != null) {
@@ -111,6 +181,135 @@ public final class NettyNetworkService {
     return false;
   }
 
+  /**
+   * Sends a message without waiting for the write to complete, so it is safe to call from an event-loop thread.
+   * Failures are counted instead of being logged.
+   * @return the future of the write, which is already succeeded if the message is dropped on purpose, and already
+   *     failed if the shared socket is not bound yet
+   */
+  @Override
+  public Future<Void> sendAsync(final InetSocketAddress address, final Object obj) {
+    return sendAsync(address, obj, null);
+  }
+
+  /**
+   * Same as {@link #sendAsync(InetSocketAddress, Object)}, and notifies the listener once the write completes.
+   */
+  @Override
+  public Future<Void> sendAsync(final InetSocketAddress address, final Object obj,
+                                final GenericFutureListener<? extends Future<? super Void>> listener) {
+    final Future<Void> future;
+    if (random.nextDouble() < dropRate) {
+      droppedMessages.incrementAndGet();
+      future = ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+    } else if (address == null || obj == null) {
+      sendFailures.incrementAndGet();
+      future = ImmediateEventExecutor.INSTANCE.newFailedFuture(
+          new IllegalArgumentException("Either address or object is null"));
+    } else if (sharedSocket && channel == null) {
+      // e.g., a timer task of the protocol racing with start()
+      sendFailures.incrementAndGet();
+      future = ImmediateEventExecutor.INSTANCE.newFailedFuture(
+          new IllegalStateException("Server channel is not bound yet"));
+    } else {
+      future = write(address, obj);
+    }
+    if (listener != null) {
+      future.addListener(listener);
+    }
+    return future;
+  }
+
+  private ChannelFuture write(final InetSocketAddress address, final Object obj) {
+    if (sharedSocket) {
+      final int index = pickChannel();
+      final Channel c = channels.get(index);
+      if (coalesceBudget > 0) {
+        final ChannelFuture f = c.write(new DefaultAddressedEnvelope<>(obj, address)).addListener(failureCounter);
+        flushers.get(index).schedule();
+        return f;
+      }
+      return c.writeAndFlush(new DefaultAddressedEnvelope<>(obj, address)).addListener(failureCounter);
+    }
+
+    final Channel c = outChannels.get(address);
+    if (c != null) {
+      if (c.isActive()) {
+        return c.writeAndFlush(obj).addListener(failureCounter);
+      }
+      outChannels.remove(address, c);
+    }
+
+    // connects in the background and writes once the channel is ready
+    final ChannelFuture connectFuture = clientBootstrap.connect(address);
+    final ChannelPromise promise = connectFuture.channel().newPromise();
+    promise.addListener(failureCounter);
+    connectFuture.addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture f) {
+        if (!f.isSuccess()) {
+          promise.tryFailure(f.cause());
+          return;
+        }
+        final Channel newChannel = f.channel();
+        final Channel prev = outChannels.putIfAbsent(address, newChannel);
+        newChannel.writeAndFlush(obj, promise);
+        if (prev != null && prev != newChannel) { // someone creates before
+          promise.addListener(ChannelFutureListener.CLOSE);
+        }
+      }
+    });
+    return promise;
+  }
+
+  // prefers the channel owned by the calling event loop so that the write needs no thread hand-off
+  private int pickChannel() {
+    final List<Channel> bound = channels;
+    for (int i = 0; i < bound.size(); ++i) {
+      if (bound.get(i).eventLoop().inEventLoop()) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Flushes the pending writes of the bound channels now, e.g., at the end of a protocol round,
+   * instead of waiting for the end of the event-loop tick.
+   */
+  @Override
+  public void flush() {
+    for (final Channel c : channels) {
+      c.flush();
+    }
+  }
+
+  /**
+   * @return the event loop of the bound server channel, for scheduling protocol tasks next to inbound processing
+   */
+  @Override
+  public EventLoop getEventLoop() {
+    if (channel == null) {
+      throw new IllegalStateException("Server channel is not bound yet");
+    }
+    return channel.eventLoop();
+  }
+
+  @Override
+  public long getSendFailureCount() {
+    return sendFailures.get();
+  }
+
+  @Override
+  public long getDroppedMessageCount() {
+    return droppedMessages.get();
+  }
+
+  @Override
+  public void setDropRate(final double dropRate) {
+    this.dropRate = dropRate;
+  }
+
   private Channel open(final InetSocketAddress address) {
     Channel c = outChannels.get(address);
     if (c != null) {
@@ -144,17 +343,30 @@ public final class NettyNetworkService {
     return open(new InetSocketAddress(host, port));
   }
 
+  @Override
   public boolean start(final int port) {
+    final List<Channel> bound = new ArrayList<>(bindCount);
     try {
-      final ChannelFuture f = serverBootstrap.bind(port).await();
-      assert f.isDone();
-      if (!f.isSuccess()) {
-        LOG.log(Level.WARNING, String.format("Binding failed for port=%d.", port), f.cause());
-        return false;
-      } else {
-        channel = f.channel();
-        return true;
+      for (int i = 0; i < bindCount; ++i) {
+        final ChannelFuture f = serverBootstrap.bind(port).await();
+        assert f.isDone();
+        if (!f.isSuccess()) {
+          LOG.log(Level.WARNING, String.format("Binding failed for port=%d.", port), f.cause());
+          for (final Channel c : bound) {
+            c.close();
+          }
+          return false;
+        }
+        bound.add(f.channel());
       }
+      final List<Flusher> newFlushers = new ArrayList<>(bound.size());
+      for (final Channel c : bound) {
+        newFlushers.add(new Flusher(c));
+      }
+      flushers = Collections.unmodifiableList(newFlushers);
+      channels = Collections.unmodifiableList(bound);
+      channel = bound.get(0);
+      return true;
     } catch (final InterruptedException ie) {
       LOG.log(Level.SEVERE, "Exception occurred while binding", ie);
       serverGroup.shutdownGracefully();
@@ -162,35 +374,43 @@ public final class NettyNetworkService {
     }
   }
 
+  @Override
   public boolean waitForClose() {
     if (channel == null) {
       return false;
     }
     try {
-      final ChannelFuture f = channel.closeFuture().await();
-      if (!f.isSuccess()) {
-        LOG.log(Level.WARNING, "Failed to wait for closing of binding channel.", f.cause());
-        return false;
+      boolean success = true;
+      for (final Channel c : channels) {
+        final ChannelFuture f = c.closeFuture().await();
+        if (!f.isSuccess()) {
+          LOG.log(Level.WARNING, "Failed to wait for closing of binding channel.", f.cause());
+          success = false;
+        }
       }
-      return true;
+      return success;
     } catch (final InterruptedException e) {
       LOG.log(Level.WARNING, "Failed to wait for closing of binding channel.", e);
       return false;
     }
   }
 
+  @Override
   public boolean stop() {
     if (channel == null) {
       return false;
     }
     try {
-      final ChannelFuture f = channel.close().await();
-      assert f.isDone();
-      if (!f.isSuccess()) {
-        LOG.log(Level.WARNING, "Failed to close binding channel.", f.cause());
-        return false;
+      boolean success = true;
+      for (final Channel c : channels) {
+        final ChannelFuture f = c.close().await();
+        assert f.isDone();
+        if (!f.isSuccess()) {
+          LOG.log(Level.WARNING, "Failed to close binding channel.", f.cause());
+          success = false;
+        }
       }
-      return true;
+      return success;
     } catch (final InterruptedException e) {
       LOG.log(Level.WARNING, "Failed to close a server", e);
       return false;
@@ -208,6 +428,31 @@ public final class NettyNetworkService {
     serverGroup.shutdownGracefully();
   }
 
+  /**
+   * Flushes a channel once after all the tasks queued on its event loop so far,
+   * so that the writes made while handling a batch of inbound datagrams or a round leave together.
+   */
+  private static final class Flusher implements Runnable {
+    private final Channel channel;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private Flusher(final Channel channel) {
+      this.channel = channel;
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        channel.eventLoop().execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      scheduled.set(false);
+      channel.flush();
+    }
+  }
+
   public static Builder newBuilder() {
     return new Builder();
   }
@@ -217,6 +462,14 @@ public final class NettyNetworkService {
     private List<ChannelHandlerFactory> clientChannelHandlerFactories = new ArrayList<>();
     private int serverGroupNum = 4;
     private Class<? extends Object> targetClass;
+    private boolean reuseDecodedMessages = false;
+    private boolean sharedSocket = false;
+    private boolean nativeTransport = false;
+    private double dropRate = 0.0D;
+    private TrafficRecorder recorder;
+    private int coalesceBudget = 0;
+    private Compression compression = Compression.NONE;
+    private int compressionThreshold = 0;
 
     public Builder addServerChannelHandlerFactory(final ChannelHandlerFactory channelHandlerFactory) {
       serverChannelHandlerFactories.add(channelHandlerFactory);
@@ -238,12 +491,76 @@ public final class NettyNetworkService {
       return this;
     }
 
+    /**
+     * Lets the server-side decoder overwrite one message instance per channel instead of allocating a new one
+     * for every datagram. Only safe if server handlers never keep references to received messages.
+     */
+    public Builder setReuseDecodedMessages(final boolean reuseDecodedMessages) {
+      this.reuseDecodedMessages = reuseDecodedMessages;
+      return this;
+    }
+
+    /**
+     * Sends every outbound message as an addressed datagram through the bound server socket
+     * instead of opening a connected channel per peer. Replies then come from the server port.
+     */
+    public Builder setSharedSocket(final boolean sharedSocket) {
+      this.sharedSocket = sharedSocket;
+      return this;
+    }
+
+    /**
+     * Uses native epoll for the server side if available and binds one SO_REUSEPORT socket per server event loop.
+     * Falls back to a single NIO socket otherwise.
+     */
+    public Builder setNativeTransport(final boolean nativeTransport) {
+      this.nativeTransport = nativeTransport;
+      return this;
+    }
+
+    /**
+     * Drops outbound messages at random with the given rate, to simulate packet loss.
+     */
+    public Builder setDropRate(final double dropRate) {
+      this.dropRate = dropRate;
+      return this;
+    }
+
+    /**
+     * Reports the size of every message encoded or decoded by the channels.
+     */
+    public Builder setTrafficRecorder(final TrafficRecorder recorder) {
+      this.recorder = recorder;
+      return this;
+    }
+
+    /**
+     * Defers the flushes of the bound channels to the end of the event-loop tick, and packs the messages to the
+     * same peer written in between into datagrams of up to the given size. 0 disables it.
+     * Only the shared socket benefits from it. The receivers must use the same decoder.
+     */
+    public Builder setCoalesceBudget(final int coalesceBudget) {
+      this.coalesceBudget = coalesceBudget;
+      return this;
+    }
+
+    /**
+     * Compresses the outbound payloads of at least the given size. Every receiver decodes any compression,
+     * since each frame says how its payload is compressed.
+     */
+    public Builder setCompression(final Compression compression, final int compressionThreshold) {
+      this.compression = compression;
+      this.compressionThreshold = compressionThreshold;
+      return this;
+    }
+
     public NettyNetworkService build() {
       if (targetClass == null) {
         throw new IllegalArgumentException("Message type class should be given");
       }
       return new NettyNetworkService(serverChannelHandlerFactories, clientChannelHandlerFactories,
-          serverGroupNum, targetClass);
+          serverGroupNum, targetClass, reuseDecodedMessages, sharedSocket,
+          nativeTransport, dropRate, recorder, coalesceBudget, compression, compressionThreshold);
     }
   }
 }
@@ -0,0 +1,17 @@
+package edu.upenn.ds.team.mp2.service;
+
+/**
+ * Notified of every encoded and decoded message, with its size on the wire including the length prefix.
+ * Called on event-loop threads, so implementations must be cheap and thread-safe.
+ */
+public interface TrafficRecorder {
+
+  void onOutbound(Object msg, int bytes);
+
+  void onInbound(Object msg, int bytes);
+
+  /**
+   * Called for the bytes dropped from a buffer that could not be decoded.
+   */
+  void onCorrupted(int bytes);
+}
@@ -0,0 +1,52 @@
+package edu.upenn.ds.team.mp2.service;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Datagram-style transport used by the protocol.
+ * Delivery is best effort. Inbound messages are handed to the protocol on the event loop of the transport.
+ */
+public interface Transport {
+
+  /**
+   * Starts receiving messages at the given port.
+   * @return false if the port cannot be used
+   */
+  boolean start(int port);
+
+  /**
+   * Sends a message without waiting for it to be delivered. Safe to call from an event-loop thread.
+   * @return the future of the send, which is already succeeded if the message is dropped on purpose
+   */
+  Future<Void> sendAsync(InetSocketAddress address, Object obj);
+
+  /**
+   * Same as {@link #sendAsync(InetSocketAddress, Object)}, and notifies the listener once the send completes.
+   */
+  Future<Void> sendAsync(InetSocketAddress address, Object obj,
+                         GenericFutureListener<? extends Future<? super Void>> listener);
+
+  /**
+   * Pushes out the messages sent so far, if the transport holds them back to batch them.
+   */
+  void flush();
+
+  /**
+   * @return the event loop receiving messages, for scheduling protocol tasks next to inbound processing
+   */
+  EventLoop getEventLoop();
+
+  boolean stop();
+
+  boolean waitForClose();
+
+  void setDropRate(double dropRate);
+
+  long getSendFailureCount();
+
+  long getDroppedMessageCount();
+}
@@ -1,36 +1,205 @@
 package edu.upenn.ds.team.utils;
 
-import io.netty.handler.codec.compression.ZlibDecoder;
+import io.netty.buffer.ByteBuf;
 import org.apache.avro.io.*;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility class for serializing and de-serializing avro objects.
+ * Readers and writers are cached per class, and encoders/decoders are re-used per thread,
+ * so that the per-packet path does not allocate codec objects.
  */
 public final class AvroUtils {
 
+  // Specific readers and writers are thread-safe once created, so one instance per class is enough.
+  private static final ConcurrentHashMap<Class<?>, DatumWriter<?>> WRITERS = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<Class<?>, DatumReader<?>> READERS = new ConcurrentHashMap<>();
+
+  // Encoders and decoders keep internal state, so they are re-used only inside one (event-loop) thread.
+  private static final ThreadLocal<CodecState> CODEC_STATE = new ThreadLocal<CodecState>() {
+    @Override
+    protected CodecState initialValue() {
+      return new CodecState();
+    }
+  };
+
   private AvroUtils() {
   }
 //序列化对象成byte 数组?
  // 序列化：把结构化的对象转换成字节流，使得能够在系统中或网络中通信
   public static <T> byte[] serialize(final T obj, final Class<T> targetClass) throws IOException {
-    final ByteArrayOutputStream out = new ByteArrayOutputStream();
-    final BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
-    final DatumWriter<T> writer = new SpecificDatumWriter<>(targetClass);
+    final CodecState state = CODEC_STATE.get();
+    final ByteArrayOutputStream out = state.byteArrayOutput;
+    out.reset();
+    final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, state.arrayEncoder);
+    state.arrayEncoder = encoder;
 
-    writer.write(obj, encoder);
+    getWriter(targetClass).write(obj, encoder);
     encoder.flush();
-    out.close();
     return out.toByteArray();
   }
 
+  /**
+   * Encodes an object directly into the given buffer, starting at its writer index.
+   */
+  public static <T> void serialize(final T obj, final Class<T> targetClass, final ByteBuf out) throws IOException {
+    final CodecState state = CODEC_STATE.get();
+    final ByteBufOutput output = state.bufOutput;
+    output.buf = out;
+    try {
+      final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(output, state.bufEncoder);
+      state.bufEncoder = encoder;
+      getWriter(targetClass).write(obj, encoder);
+      encoder.flush();
+    } finally {
+      output.buf = null;
+    }
+  }
+
   public static <T> T deserialize(final byte[] bytes, final Class<T> targetClass) throws IOException {
-    final SpecificDatumReader<T> reader = new SpecificDatumReader<>(targetClass);
-    final Decoder decoder = DecoderFactory.get().binaryDecoder(bytes, null);
-    return reader.read(null, decoder);
+    final CodecState state = CODEC_STATE.get();
+    final BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(bytes, state.arrayDecoder);
+    state.arrayDecoder = decoder;
+    return getReader(targetClass).read(null, decoder);
+  }
+
+  /**
+   * Decodes an object from the next {@code length} readable bytes of the given buffer without copying them.
+   * The reader index is advanced by {@code length}.
+   * If {@code reuse} is given, its fields are overwritten (including nested records and strings),
+   * so callers must not keep references to a re-used instance after processing it.
+   */
+  public static <T> T deserialize(final ByteBuf in, final int length, final Class<T> targetClass, final T reuse)
+      throws IOException {
+    final CodecState state = CODEC_STATE.get();
+    final DatumReader<T> reader = getReader(targetClass);
+    final T result;
+    if (in.hasArray()) {
+      final BinaryDecoder decoder = DecoderFactory.get()
+          .binaryDecoder(in.array(), in.arrayOffset() + in.readerIndex(), length, state.arrayDecoder);
+      state.arrayDecoder = decoder;
+      result = reader.read(reuse, decoder);
+    } else {
+      final ByteBufInput input = state.bufInput;
+      input.reset(in, in.readerIndex(), length);
+      try {
+        final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(input, state.bufDecoder);
+        state.bufDecoder = decoder;
+        result = reader.read(reuse, decoder);
+      } finally {
+        input.reset(null, 0, 0);
+      }
+    }
+    in.skipBytes(length);
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> DatumWriter<T> getWriter(final Class<T> targetClass) {
+    DatumWriter<?> writer = WRITERS.get(targetClass);
+    if (writer == null) {
+      final DatumWriter<?> newWriter = new SpecificDatumWriter<>(targetClass);
+      writer = WRITERS.putIfAbsent(targetClass, newWriter);
+      if (writer == null) {
+        writer = newWriter;
+      }
+    }
+    return (DatumWriter<T>) writer;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> DatumReader<T> getReader(final Class<T> targetClass) {
+    DatumReader<?> reader = READERS.get(targetClass);
+    if (reader == null) {
+      final DatumReader<?> newReader = new SpecificDatumReader<>(targetClass);
+      reader = READERS.putIfAbsent(targetClass, newReader);
+      if (reader == null) {
+        reader = newReader;
+      }
+    }
+    return (DatumReader<T>) reader;
+  }
+
+  /**
+   * Per-thread encoders, decoders and stream adapters.
+   */
+  private static final class CodecState {
+    private final ByteArrayOutputStream byteArrayOutput = new ByteArrayOutputStream(256);
+    private final ByteBufOutput bufOutput = new ByteBufOutput();
+    private final ByteBufInput bufInput = new ByteBufInput();
+    private BinaryEncoder arrayEncoder;
+    private BinaryEncoder bufEncoder;
+    private BinaryDecoder arrayDecoder;
+    private BinaryDecoder bufDecoder;
+  }
+
+  /**
+   * Re-usable {@link OutputStream} view of a {@link ByteBuf}.
+   */
+  private static final class ByteBufOutput extends OutputStream {
+    private ByteBuf buf;
+
+    @Override
+    public void write(final int b) {
+      buf.writeByte(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+      buf.writeBytes(b, off, len);
+    }
+  }
+
+  /**
+   * Re-usable {@link InputStream} view of a byte range of a {@link ByteBuf}. It does not move the reader index.
+   */
+  private static final class ByteBufInput extends InputStream {
+    private ByteBuf buf;
+    private int position;
+    private int limit;
+
+    private void reset(final ByteBuf buf, final int position, final int length) {
+      this.buf = buf;
+      this.position = position;
+      this.limit = position + length;
+    }
+
+    @Override
+    public int read() {
+      if (position >= limit) {
+        return -1;
+      }
+      return buf.getByte(position++) & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      if (position >= limit) {
+        return -1;
+      }
+      final int n = Math.min(len, limit - position);
+      buf.getBytes(position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) {
+      final int skipped = (int) Math.min(n, limit - position);
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return limit - position;
+    }
   }
 }